@@ -0,0 +1,28 @@
+package av.expr;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark of the pipeline with the GC profiler, which reports
+ * allocated bytes per operation next to the time.
+ * <p>
+ * The classes in this source root are compiled against the main sources with
+ * jmh-core and the jmh-generator-annprocess annotation processor on the class
+ * path, see {@code benchmarks/build.gradle}. Pass a regular expression to run
+ * a subset, for example {@code gradle :benchmarks:run --args=Parser}; the
+ * JMH command line ({@code java org.openjdk.jmh.Main -prof gc ...}) works as well.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "av\\.expr\\..*Benchmark";
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
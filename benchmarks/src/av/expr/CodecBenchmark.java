@@ -0,0 +1,44 @@
+package av.expr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a stored formula: decoding its binary entry against parsing its text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmark extends CorpusState {
+    private final ExpParser parser = new ExpParser();
+    private ExpDecoder decoder;
+
+    @Setup
+    public void encode() {
+        ExpEncoder encoder = new ExpEncoder();
+        for (Main.Exp tree : ExpressionCorpus.parse(statements)) {
+            encoder.add(tree);
+        }
+        decoder = new ExpDecoder(encoder.encode());
+    }
+
+    @Benchmark
+    public Main.Exp decode() {
+        return decoder.expression(nextIndex());
+    }
+
+    @Benchmark
+    public Main.Exp parse() {
+        return parser.parseExpression(statements[nextIndex()]);
+    }
+}
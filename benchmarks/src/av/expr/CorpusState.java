@@ -0,0 +1,32 @@
+package av.expr;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Statements of one size and nesting depth, handed out round robin so that a
+ * benchmark does not keep replaying a single input the branch predictor has
+ * learned.
+ */
+@State(Scope.Thread)
+public class CorpusState {
+    @Param({"4", "32", "256"})
+    public int terms;
+
+    @Param({"2", "8"})
+    public int depth;
+
+    String[] statements;
+    private int next;
+
+    @Setup
+    public void generate() {
+        statements = ExpressionCorpus.statements(terms, depth, 42);
+    }
+
+    int nextIndex() {
+        return next++ & (ExpressionCorpus.STATEMENTS - 1);
+    }
+}
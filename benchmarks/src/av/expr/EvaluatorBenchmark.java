@@ -0,0 +1,55 @@
+package av.expr;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tree evaluation on parsed statements: {@link Main.Evaluator} in strict mode
+ * with every variable bound, in simplify mode with half of them bound, and
+ * {@link DoubleEvaluator} on the fully bound context.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EvaluatorBenchmark extends CorpusState {
+    private Main.Exp[] trees;
+    private Map<Main.Var, Main.Exp> bound;
+    private Map<Main.Var, Main.Exp> partlyBound;
+
+    @Setup
+    public void parse() {
+        trees = ExpressionCorpus.parse(statements);
+        bound = ExpressionCorpus.context(1.0, 7);
+        partlyBound = ExpressionCorpus.context(0.5, 7);
+    }
+
+    @Benchmark
+    public Main.Exp strict() {
+        Main.Evaluator evaluator = new Main.Evaluator(bound, true);
+        trees[nextIndex()].accept(evaluator);
+        return evaluator.getResult();
+    }
+
+    @Benchmark
+    public Main.Exp simplify() {
+        Main.Evaluator evaluator = new Main.Evaluator(partlyBound, false);
+        trees[nextIndex()].accept(evaluator);
+        return evaluator.getResult();
+    }
+
+    @Benchmark
+    public double toDouble() {
+        return new DoubleEvaluator(bound).evaluate(trees[nextIndex()]);
+    }
+}
@@ -0,0 +1,82 @@
+package av.expr;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic statements for the benchmarks: sums of products over numbers
+ * and single letter variables, bracketed up to a given depth, like the
+ * formulas replayed in production. The same seed always gives the same corpus.
+ */
+final class ExpressionCorpus {
+    static final int STATEMENTS = 64;
+
+    private ExpressionCorpus() {
+    }
+
+    /**
+     * @param terms number of operands in each statement
+     * @param depth maximum bracket nesting
+     */
+    static String[] statements(int terms, int depth, long seed) {
+        Random random = new Random(seed);
+        String[] statements = new String[STATEMENTS];
+        for (int i = 0; i < STATEMENTS; i++) {
+            StringBuilder sb = new StringBuilder();
+            append(sb, random, terms, depth);
+            statements[i] = sb.toString();
+        }
+        return statements;
+    }
+
+    static Main.Exp[] parse(String[] statements) {
+        ExpParser parser = new ExpParser();
+        Main.Exp[] trees = new Main.Exp[statements.length];
+        for (int i = 0; i < statements.length; i++) {
+            trees[i] = parser.parseExpression(statements[i]);
+        }
+        return trees;
+    }
+
+    /**
+     * @param boundFraction share of the variables a..z that get a value, the rest stay symbolic
+     */
+    static Map<Main.Var, Main.Exp> context(double boundFraction, long seed) {
+        Random random = new Random(seed);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        for (char c = 'a'; c <= 'z'; c++) {
+            if (random.nextDouble() < boundFraction) {
+                context.put(new Main.Var(c), new Main.Num(random.nextInt(99) + 1));
+            }
+        }
+        return context;
+    }
+
+    private static void append(StringBuilder sb, Random random, int terms, int depth) {
+        if (terms == 1) {
+            if (random.nextBoolean()) {
+                sb.append(random.nextInt(1000));
+            } else {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            return;
+        }
+        int left = 1 + random.nextInt(terms - 1);
+        boolean bracketLeft = depth > 0 && left > 1 && random.nextInt(3) == 0;
+        boolean bracketRight = depth > 0 && terms - left > 1 && random.nextInt(3) == 0;
+        appendOperand(sb, random, left, depth, bracketLeft);
+        sb.append(' ').append("+-*/".charAt(random.nextInt(4))).append(' ');
+        appendOperand(sb, random, terms - left, depth, bracketRight);
+    }
+
+    private static void appendOperand(StringBuilder sb, Random random, int terms, int depth, boolean bracket) {
+        if (bracket) {
+            sb.append('(');
+            append(sb, random, terms, depth - 1);
+            sb.append(')');
+        } else {
+            append(sb, random, terms, depth);
+        }
+    }
+}
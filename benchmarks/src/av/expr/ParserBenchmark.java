@@ -0,0 +1,56 @@
+package av.expr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Front end stages: text to postfix tokens, postfix tokens to a tree, and the
+ * whole {@link ExpParser#parseExpression(String)} path for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmark extends CorpusState {
+    private final ExpParser parser = new ExpParser();
+    private List<List<ExpParser.Token>> postfix;
+
+    // runs after CorpusState.generate(), JMH calls superclass helpers first
+    @Setup
+    public void tokenize() {
+        postfix = new ArrayList<>();
+        for (String statement : statements) {
+            postfix.add(parser.toPostfixForm(statement));
+        }
+    }
+
+    @Benchmark
+    public List<ExpParser.Token> toPostfixForm() {
+        return parser.toPostfixForm(statements[nextIndex()]);
+    }
+
+    @Benchmark
+    public Main.Exp postfixToTree() {
+        Token2ExpressionVisitor visitor = new Token2ExpressionVisitor();
+        for (ExpParser.Token token : postfix.get(nextIndex())) {
+            token.accept(visitor);
+        }
+        return visitor.getResult();
+    }
+
+    @Benchmark
+    public Main.Exp parseExpression() {
+        return parser.parseExpression(statements[nextIndex()]);
+    }
+}
@@ -0,0 +1,47 @@
+package av.expr;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Printing parsed statements, as a new String through {@link Main.PrettyPrinter}
+ * and streamed by {@link ExpWriter} into a reused buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PrinterBenchmark extends CorpusState {
+    private final ExpWriter writer = new ExpWriter();
+    private final StringBuilder out = new StringBuilder();
+    private Main.Exp[] trees;
+
+    @Setup
+    public void parse() {
+        trees = ExpressionCorpus.parse(statements);
+    }
+
+    @Benchmark
+    public String prettyPrinter() {
+        Main.PrettyPrinter printer = new Main.PrettyPrinter();
+        trees[nextIndex()].accept(printer);
+        return printer.getResult();
+    }
+
+    @Benchmark
+    public int expWriter() throws IOException {
+        out.setLength(0);
+        writer.print(trees[nextIndex()], out);
+        return out.length();
+    }
+}
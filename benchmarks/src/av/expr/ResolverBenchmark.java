@@ -0,0 +1,59 @@
+package av.expr;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end {@link ExpResolver} calls, from statement text to printed result.
+ * The cached resolver has seen every statement of the corpus before; the
+ * uncached one keeps a single cache entry, so each call parses again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResolverBenchmark extends CorpusState {
+    private final ExpResolver cached = new ExpResolver();
+    private final ExpResolver uncached = new ExpResolver(new StatementCache(1, Long.MAX_VALUE));
+    private Map<Main.Var, Main.Exp> bound;
+    private Map<Main.Var, Main.Exp> partlyBound;
+
+    @Setup
+    public void warmCache() {
+        bound = ExpressionCorpus.context(1.0, 7);
+        partlyBound = ExpressionCorpus.context(0.5, 7);
+        for (String statement : statements) {
+            cached.parseStatement(statement);
+        }
+    }
+
+    @Benchmark
+    public String simplifyCached() {
+        return cached.simplifyStatement(statements[nextIndex()], partlyBound);
+    }
+
+    @Benchmark
+    public String evaluateCached() {
+        return cached.evaluateStatement(statements[nextIndex()], bound);
+    }
+
+    @Benchmark
+    public String simplifyUncached() {
+        return uncached.simplifyStatement(statements[nextIndex()], partlyBound);
+    }
+
+    @Benchmark
+    public String evaluateUncached() {
+        return uncached.evaluateStatement(statements[nextIndex()], bound);
+    }
+}
@@ -0,0 +1,160 @@
+package av.expr;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The evaluators and the printer, which switch to explicit stacks on deep
+ * trees, next to plain recursive versions of the same traversals on the
+ * shallow corpus, where recursion is cheapest. Each recursive version computes
+ * the same result as the one it is compared with: variables are resolved once
+ * per evaluation and numbers use the arithmetic of {@link Main.Evaluator}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TraversalBenchmark extends CorpusState {
+    private Main.Exp[] trees;
+    private Map<Main.Var, Main.Exp> bound;
+    private Map<Main.Var, Main.Exp> partlyBound;
+
+    @Setup
+    public void parse() {
+        trees = ExpressionCorpus.parse(statements);
+        bound = ExpressionCorpus.context(1.0, 7);
+        partlyBound = ExpressionCorpus.context(0.5, 7);
+    }
+
+    @Benchmark
+    public Main.Exp strict() {
+        Main.Evaluator evaluator = new Main.Evaluator(bound, true);
+        trees[nextIndex()].accept(evaluator);
+        return evaluator.getResult();
+    }
+
+    @Benchmark
+    public Main.Exp strictRecursive() {
+        return simplify(trees[nextIndex()], bound, true, new HashMap<Main.Var, Main.Exp>());
+    }
+
+    @Benchmark
+    public Main.Exp simplify() {
+        Main.Evaluator evaluator = new Main.Evaluator(partlyBound, false);
+        trees[nextIndex()].accept(evaluator);
+        return evaluator.getResult();
+    }
+
+    @Benchmark
+    public Main.Exp simplifyRecursive() {
+        return simplify(trees[nextIndex()], partlyBound, false, new HashMap<Main.Var, Main.Exp>());
+    }
+
+    @Benchmark
+    public double toDouble() {
+        return new DoubleEvaluator(bound).evaluate(trees[nextIndex()]);
+    }
+
+    @Benchmark
+    public double toDoubleRecursive() {
+        return evaluate(trees[nextIndex()], new HashMap<Main.Var, Double>());
+    }
+
+    @Benchmark
+    public String prettyPrinter() {
+        Main.PrettyPrinter printer = new Main.PrettyPrinter();
+        trees[nextIndex()].accept(printer);
+        return printer.getResult();
+    }
+
+    @Benchmark
+    public String prettyPrinterRecursive() {
+        StringBuilder out = new StringBuilder();
+        print(trees[nextIndex()], out);
+        return out.toString();
+    }
+
+    private Main.Exp simplify(Main.Exp exp, Map<Main.Var, Main.Exp> context, boolean strict,
+                              Map<Main.Var, Main.Exp> resolved) {
+        if (exp instanceof Main.Num) {
+            return exp;
+        }
+        if (exp instanceof Main.Var) {
+            Main.Exp value = resolved.get(exp);
+            if (value != null) {
+                return value;
+            }
+            Main.Exp definition = context.get(exp);
+            if (definition == null) {
+                if (strict) throw new IllegalArgumentException("Undefined variable " + ((Main.Var) exp).getName());
+                return exp;
+            }
+            value = simplify(definition, context, strict, resolved);
+            resolved.put((Main.Var) exp, value);
+            return value;
+        }
+        Main.BiExp biExp = (Main.BiExp) exp;
+        Main.Exp left = simplify(biExp.left, context, strict, resolved);
+        Main.Exp right = simplify(biExp.right, context, strict, resolved);
+        if (left instanceof Main.Num && right instanceof Main.Num) {
+            return Main.Evaluator.arithmetic(biExp, (Main.Num) left, (Main.Num) right);
+        }
+        if (exp instanceof Main.Sum) return new Main.Sum(left, right);
+        if (exp instanceof Main.Sub) return new Main.Sub(left, right);
+        if (exp instanceof Main.Mul) return new Main.Mul(left, right);
+        return new Main.Dev(left, right);
+    }
+
+    private double evaluate(Main.Exp exp, Map<Main.Var, Double> resolved) {
+        if (exp instanceof Main.Num) {
+            return ((Main.Num) exp).doubleValue();
+        }
+        if (exp instanceof Main.Var) {
+            Double value = resolved.get(exp);
+            if (value == null) {
+                value = evaluate(bound.get(exp), resolved);
+                resolved.put((Main.Var) exp, value);
+            }
+            return value;
+        }
+        Main.BiExp biExp = (Main.BiExp) exp;
+        double left = evaluate(biExp.left, resolved);
+        double right = evaluate(biExp.right, resolved);
+        if (exp instanceof Main.Sum) return left + right;
+        if (exp instanceof Main.Sub) return left - right;
+        if (exp instanceof Main.Mul) return left * right;
+        return left / right;
+    }
+
+    private static void print(Main.Exp exp, StringBuilder sb) {
+        if (exp instanceof Main.Num) {
+            Main.Num num = (Main.Num) exp;
+            if (num.isIntegral()) {
+                sb.append(num.longValue());
+            } else {
+                sb.append(num.doubleValue());
+            }
+        } else if (exp instanceof Main.Var) {
+            sb.append(((Main.Var) exp).getName());
+        } else {
+            Main.BiExp biExp = (Main.BiExp) exp;
+            boolean bracketed = exp instanceof Main.Sum || exp instanceof Main.Sub;
+            if (bracketed) sb.append('(');
+            print(biExp.left, sb);
+            sb.append(exp instanceof Main.Sum ? " + " : exp instanceof Main.Sub ? " - " : exp instanceof Main.Mul ? " * " : " / ");
+            print(biExp.right, sb);
+            if (bracketed) sb.append(')');
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package av.expr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates one expression over many rows of variable values, a column at a
+ * time. The tree is flattened once into a list of steps over column,
+ * constant and temporary operands; rows are then processed in chunks of
+ * {@value #CHUNK_SIZE}, running every step as a tight loop over the chunk so
+ * that the JIT can vectorize it. Constant subtrees are folded when the plan
+ * is built.
+ */
+public final class BatchEvaluator {
+    static final int CHUNK_SIZE = 1024;
+
+    private static final int COLUMN = 0;
+    private static final int CONSTANT = 1;
+    private static final int TEMP = 2;
+    private static final int OUTPUT = 3;
+
+    private static final int ADD = 0;
+    private static final int SUB = 1;
+    private static final int MUL = 2;
+    private static final int DIV = 3;
+
+    private final Main.Var[] variables;
+    private final Step[] steps;
+    private final Operand result;
+    private final int temps;
+
+    private BatchEvaluator(Main.Var[] variables, Step[] steps, Operand result, int temps) {
+        this.variables = variables;
+        this.steps = steps;
+        this.result = result;
+        this.temps = temps;
+    }
+
+    public static BatchEvaluator compile(Main.Exp exp) {
+        return new Planner().plan(exp);
+    }
+
+    public static void evaluate(Main.Exp exp, Map<Main.Var, double[]> columns, double[] out) {
+        compile(exp).evaluate(columns, out);
+    }
+
+    /**
+     * @return variables in the order expected by {@link #evaluate(double[][], double[])}
+     */
+    public List<Main.Var> getVariables() {
+        List<Main.Var> result = new ArrayList<>(variables.length);
+        for (Main.Var variable : variables) {
+            result.add(variable);
+        }
+        return result;
+    }
+
+    public void evaluate(Map<Main.Var, double[]> columns, double[] out) {
+        double[][] ordered = new double[variables.length][];
+        for (int i = 0; i < variables.length; i++) {
+            ordered[i] = columns.get(variables[i]);
+            if (ordered[i] == null) {
+                throw new IllegalArgumentException("No column for variable " + variables[i].getName());
+            }
+        }
+        evaluate(ordered, out);
+    }
+
+    /**
+     * Evaluates {@code out.length} rows. Every column must have at least as
+     * many values as {@code out}.
+     */
+    public void evaluate(double[][] columns, double[] out) {
+        int rows = out.length;
+        if (columns.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " columns, got " + columns.length);
+        }
+        for (double[] column : columns) {
+            if (column.length < rows) {
+                throw new IllegalArgumentException("Column has " + column.length + " rows, expected " + rows);
+            }
+        }
+
+        double[][] tempBuffers = new double[temps][CHUNK_SIZE];
+        for (int start = 0; start < rows; start += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, rows - start);
+            for (Step step : steps) {
+                step.run(columns, tempBuffers, out, start, length);
+            }
+            if (result.kind == CONSTANT) {
+                fill(out, start, length, result.value);
+            } else if (result.kind == COLUMN) {
+                System.arraycopy(columns[result.index], start, out, start, length);
+            }
+        }
+    }
+
+    private static void fill(double[] out, int start, int length, double value) {
+        for (int i = start; i < start + length; i++) {
+            out[i] = value;
+        }
+    }
+
+    private static class Operand {
+        final int kind;
+        final int index;
+        final double value;
+
+        Operand(int kind, int index, double value) {
+            this.kind = kind;
+            this.index = index;
+            this.value = value;
+        }
+
+        double[] array(double[][] columns, double[][] tempBuffers, double[] out) {
+            switch (kind) {
+                case COLUMN: return columns[index];
+                case TEMP: return tempBuffers[index];
+                default: return out;
+            }
+        }
+
+        int offset(int start) {
+            return kind == COLUMN || kind == OUTPUT ? start : 0;
+        }
+    }
+
+    private static class Step {
+        final int op;
+        final Operand left;
+        final Operand right;
+        final Operand target;
+
+        Step(int op, Operand left, Operand right, Operand target) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.target = target;
+        }
+
+        void run(double[][] columns, double[][] tempBuffers, double[] out, int start, int length) {
+            double[] t = target.array(columns, tempBuffers, out);
+            int to = target.offset(start);
+            if (left.kind == CONSTANT) {
+                scalarVector(op, left.value, right.array(columns, tempBuffers, out), right.offset(start), t, to, length);
+            } else if (right.kind == CONSTANT) {
+                vectorScalar(op, left.array(columns, tempBuffers, out), left.offset(start), right.value, t, to, length);
+            } else {
+                vectorVector(op, left.array(columns, tempBuffers, out), left.offset(start),
+                        right.array(columns, tempBuffers, out), right.offset(start), t, to, length);
+            }
+        }
+    }
+
+    private static void vectorVector(int op, double[] a, int ao, double[] b, int bo, double[] t, int to, int length) {
+        switch (op) {
+            case ADD: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] + b[bo + i]; break;
+            case SUB: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] - b[bo + i]; break;
+            case MUL: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] * b[bo + i]; break;
+            case DIV: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] / b[bo + i]; break;
+        }
+    }
+
+    private static void vectorScalar(int op, double[] a, int ao, double b, double[] t, int to, int length) {
+        switch (op) {
+            case ADD: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] + b; break;
+            case SUB: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] - b; break;
+            case MUL: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] * b; break;
+            case DIV: for (int i = 0; i < length; i++) t[to + i] = a[ao + i] / b; break;
+        }
+    }
+
+    private static void scalarVector(int op, double a, double[] b, int bo, double[] t, int to, int length) {
+        switch (op) {
+            case ADD: for (int i = 0; i < length; i++) t[to + i] = a + b[bo + i]; break;
+            case SUB: for (int i = 0; i < length; i++) t[to + i] = a - b[bo + i]; break;
+            case MUL: for (int i = 0; i < length; i++) t[to + i] = a * b[bo + i]; break;
+            case DIV: for (int i = 0; i < length; i++) t[to + i] = a / b[bo + i]; break;
+        }
+    }
+
+    private static class Planner {
+        private final Map<Main.Var, Integer> variables = new LinkedHashMap<>();
+        private final List<Step> steps = new ArrayList<>();
+        private final Deque<Integer> freeTemps = new ArrayDeque<>();
+        private int temps;
+
+        /**
+         * Plans the tree in postfix order with explicit stacks, so deep trees
+         * are safe.
+         */
+        BatchEvaluator plan(Main.Exp exp) {
+            Deque<Main.Exp> pending = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            Deque<Operand> operands = new ArrayDeque<>();
+            pending.push(exp);
+            expanded.push(Boolean.FALSE);
+            while (!pending.isEmpty()) {
+                Main.Exp node = pending.pop();
+                boolean done = expanded.pop();
+                if (node instanceof Main.BiExp && !done) {
+                    pending.push(node);
+                    expanded.push(Boolean.TRUE);
+                    pending.push(((Main.BiExp) node).right);
+                    expanded.push(Boolean.FALSE);
+                    pending.push(((Main.BiExp) node).left);
+                    expanded.push(Boolean.FALSE);
+                    continue;
+                }
+                if (done) {
+                    Operand right = operands.pop();
+                    Operand left = operands.pop();
+                    // the root is the last node left to plan
+                    operands.push(combine((Main.BiExp) node, left, right, pending.isEmpty()));
+                } else {
+                    operands.push(leaf(node));
+                }
+            }
+            Operand result = operands.pop();
+            return new BatchEvaluator(variables.keySet().toArray(new Main.Var[variables.size()]),
+                    steps.toArray(new Step[steps.size()]), result, temps);
+        }
+
+        private Operand leaf(Main.Exp exp) {
+            if (exp instanceof Main.Num) {
+                return new Operand(CONSTANT, 0, ((Main.Num) exp).doubleValue());
+            }
+            if (exp instanceof Main.Var) {
+                Integer index = variables.get(exp);
+                if (index == null) {
+                    index = variables.size();
+                    variables.put((Main.Var) exp, index);
+                }
+                return new Operand(COLUMN, index, 0);
+            }
+            throw new IllegalArgumentException("Cannot evaluate " + exp.getClass().getSimpleName());
+        }
+
+        private Operand combine(Main.BiExp exp, Operand left, Operand right, boolean root) {
+            int op = opcode(exp);
+            if (left.kind == CONSTANT && right.kind == CONSTANT) {
+                return new Operand(CONSTANT, 0, fold(op, left.value, right.value));
+            }
+            release(left);
+            release(right);
+            Operand target = root ? new Operand(OUTPUT, 0, 0) : new Operand(TEMP, acquire(), 0);
+            steps.add(new Step(op, left, right, target));
+            return target;
+        }
+
+        private int acquire() {
+            return freeTemps.isEmpty() ? temps++ : freeTemps.pop();
+        }
+
+        private void release(Operand operand) {
+            if (operand.kind == TEMP) {
+                freeTemps.push(operand.index);
+            }
+        }
+
+        private static int opcode(Main.BiExp exp) {
+            if (exp instanceof Main.Sum) return ADD;
+            if (exp instanceof Main.Sub) return SUB;
+            if (exp instanceof Main.Mul) return MUL;
+            if (exp instanceof Main.Dev) return DIV;
+            throw new IllegalArgumentException("Cannot evaluate " + exp.getClass().getSimpleName());
+        }
+
+        private static double fold(int op, double left, double right) {
+            switch (op) {
+                case ADD: return left + right;
+                case SUB: return left - right;
+                case MUL: return left * right;
+                default: return left / right;
+            }
+        }
+    }
+}
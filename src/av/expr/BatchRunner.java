@@ -0,0 +1,258 @@
+package av.expr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless replay of statement files. Reads one statement per line through
+ * fixed size NIO buffers, resolves it with {@link ExpResolver} in simplify or
+ * evaluate mode and streams the result, one output line per input line, so
+ * memory use does not depend on the file size. A line that fails produces
+ * {@code error: <message>} in the output and a report with its line number,
+ * and the run continues. Blank lines stay blank.
+ * <p>
+ * Usage: {@code java av.expr.BatchRunner [--simplify|--evaluate] <input> <output>}
+ */
+public class BatchRunner {
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+    private final ExpResolver expResolver;
+    private final boolean strict;
+    private final Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+    public BatchRunner(ExpResolver expResolver, boolean strict) {
+        this.expResolver = expResolver;
+        this.strict = strict;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean strict = false;
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("--")) {
+            if (!args[0].equals("--simplify") && !args[0].equals("--evaluate")) {
+                usage();
+                return;
+            }
+            strict = args[0].equals("--evaluate");
+            first = 1;
+        }
+        if (args.length - first != 2) {
+            usage();
+            return;
+        }
+        Stats stats = new BatchRunner(new ExpResolver(), strict).run(Paths.get(args[first]), Paths.get(args[first + 1]), System.err);
+        System.err.println(stats);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BatchRunner [--simplify|--evaluate] <input> <output>");
+        System.exit(2);
+    }
+
+    /**
+     * The context carries over between runs of the same runner.
+     */
+    public Stats run(Path input, Path output, Appendable errors) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            return run(in, out, errors);
+        }
+    }
+
+    public Stats run(ReadableByteChannel in, WritableByteChannel out, Appendable errors) throws IOException {
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        ChannelOutput output = new ChannelOutput(out, stats);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] chunk = buffer.array();
+        // part of a line that continues in the next chunk
+        byte[] pending = new byte[256];
+        int pendingLength = 0;
+        boolean skipping = false;
+
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            stats.bytesRead += read;
+            int lineStart = 0;
+            for (int i = 0; i < buffer.position(); i++) {
+                if (chunk[i] != '\n') {
+                    continue;
+                }
+                if (skipping) {
+                    stats.lines++;
+                    skipping = false;
+                } else if (pendingLength == 0) {
+                    process(chunk, lineStart, i - lineStart, output, errors, stats);
+                } else {
+                    pending = append(pending, pendingLength, chunk, lineStart, i - lineStart);
+                    process(pending, 0, pendingLength + i - lineStart, output, errors, stats);
+                }
+                pendingLength = 0;
+                lineStart = i + 1;
+            }
+            int rest = buffer.position() - lineStart;
+            if (!skipping && rest > 0) {
+                if (pendingLength + rest > MAX_LINE_LENGTH) {
+                    reportError(stats.lines + 1, "line longer than " + MAX_LINE_LENGTH + " bytes", output, errors, stats);
+                    skipping = true;
+                    pendingLength = 0;
+                } else {
+                    pending = append(pending, pendingLength, chunk, lineStart, rest);
+                    pendingLength += rest;
+                }
+            }
+            buffer.clear();
+        }
+        if (skipping) {
+            stats.lines++;
+        } else if (pendingLength > 0) {
+            process(pending, 0, pendingLength, output, errors, stats);
+        }
+        output.flush();
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private static byte[] append(byte[] target, int length, byte[] source, int offset, int count) {
+        if (length + count > target.length) {
+            target = Arrays.copyOf(target, Math.max(target.length * 2, length + count));
+        }
+        System.arraycopy(source, offset, target, length, count);
+        return target;
+    }
+
+    private void process(byte[] bytes, int offset, int length, ChannelOutput output, Appendable errors, Stats stats)
+            throws IOException {
+        stats.lines++;
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        String statement = new String(bytes, offset, length, StandardCharsets.ISO_8859_1).trim();
+        if (!statement.isEmpty()) {
+            try {
+                if (strict) {
+                    expResolver.evaluateStatement(statement, context, output);
+                } else {
+                    expResolver.simplifyStatement(statement, context, output);
+                }
+                stats.statements++;
+            } catch (RuntimeException e) {
+                reportError(stats.lines, String.valueOf(e.getMessage()), output, errors, stats);
+                return;
+            }
+        }
+        output.append('\n');
+    }
+
+    private static void reportError(long line, String message, ChannelOutput output, Appendable errors, Stats stats)
+            throws IOException {
+        stats.errors++;
+        output.append("error: ").append(message).append('\n');
+        if (errors != null) {
+            errors.append("line ").append(String.valueOf(line)).append(": ").append(message).append('\n');
+        }
+    }
+
+    /**
+     * Encodes characters as ASCII into a buffer that is written to the channel when full.
+     */
+    private static class ChannelOutput implements Appendable {
+        private final WritableByteChannel channel;
+        private final Stats stats;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelOutput(WritableByteChannel channel, Stats stats) {
+            this.channel = channel;
+            this.stats = stats;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                append(csq.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+            return this;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                stats.bytesWritten += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    public static class Stats {
+        long lines;
+        long statements;
+        long errors;
+        long bytesRead;
+        long bytesWritten;
+        long nanos;
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getStatements() {
+            return statements;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getElapsedNanos() {
+            return nanos;
+        }
+
+        public double statementsPerSecond() {
+            return nanos == 0 ? 0 : (statements + errors) * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("lines=%d statements=%d errors=%d read=%d bytes written=%d bytes time=%.3f s"
+                            + " throughput=%.0f statements/s %.1f MB/s",
+                    lines, statements, errors, bytesRead, bytesWritten, seconds, statementsPerSecond(),
+                    seconds == 0 ? 0.0 : bytesRead / seconds / (1024 * 1024));
+        }
+    }
+}
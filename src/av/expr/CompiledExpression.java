@@ -0,0 +1,9 @@
+package av.expr;
+
+/**
+ * Expression compiled to straight line code. Variable values are passed in
+ * the slot order the expression was compiled with.
+ */
+public interface CompiledExpression {
+    double evaluate(double[] values);
+}
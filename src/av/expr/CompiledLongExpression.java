@@ -0,0 +1,13 @@
+package av.expr;
+
+/**
+ * Expression over integral values compiled to straight line long code.
+ * Variable values are passed in the slot order the expression was compiled
+ * with.
+ */
+public interface CompiledLongExpression {
+    /**
+     * @throws ArithmeticException if a step overflows or a quotient is not a whole number
+     */
+    long evaluate(long[] values);
+}
@@ -0,0 +1,414 @@
+package av.expr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of context changes, kept in a directory as one
+ * compacted snapshot and the journal of the changes made after it, both
+ * numbered by generation:
+ * <pre>
+ * snapshot-&lt;g&gt;.bin   every definition, one {@link ExpEncoder} entry per variable
+ * journal-&lt;g&gt;.log    records of changes since that snapshot:
+ *                     int length, int CRC32, byte op, {@link ExpEncoder} payload
+ * </pre>
+ * Appends go to a memory buffer. {@link #sync(long)} writes and forces
+ * everything appended so far with a single fsync; callers that arrive while
+ * another thread is syncing wait for it and share the next one (group
+ * commit). With a sync interval, a background thread does the same
+ * periodically, so changes are batched and may be lost for at most that long.
+ * A failed write leaves the journal failed: the unwritten batch is kept in
+ * memory, and every later append or sync fails, since the file may hold part
+ * of the batch.
+ * <p>
+ * A new snapshot is written to a temporary file and renamed into place
+ * before the next generation's journal is started and the old files are
+ * deleted, so a crash at any point leaves a consistent pair to recover
+ * from. Recovery maps both files and stops at the first torn or corrupt
+ * record, which is cut off.
+ */
+class ContextJournal implements Closeable {
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+
+    private static final Pattern FILE_NAME = Pattern.compile("(snapshot|journal)-(\\d+)\\.(bin|log|tmp)");
+    private static final int HEADER = 8;
+
+    private final Path directory;
+    private final long syncIntervalMillis;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private FileChannel channel;
+    private long generation;
+    private long appended;
+    private long durable;
+    private boolean syncing;
+    private long syncs;
+    private long recordsSinceSnapshot;
+    private Thread flusher;
+    // first failed write, after which nothing more is written
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * @param syncIntervalMillis 0 when every caller syncs its own changes,
+     *                           otherwise how often the background thread syncs
+     */
+    ContextJournal(Path directory, long syncIntervalMillis) {
+        this.directory = directory;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Loads the latest snapshot and replays the journal after it, then opens the journal for appends.
+     *
+     * @return the recovered definitions
+     */
+    Map<Main.Var, Main.Exp> recover() throws IOException {
+        Files.createDirectories(directory);
+        generation = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && matcher.group(3).equals("bin")) {
+                    generation = Math.max(generation, Long.parseLong(matcher.group(2)));
+                }
+            }
+        }
+
+        Map<Main.Var, Main.Exp> state = new HashMap<>();
+        Path snapshot = snapshotFile(generation);
+        if (Files.exists(snapshot)) {
+            ExpDecoder decoder = ExpDecoder.map(snapshot);
+            for (int i = 0; i < decoder.size(); i++) {
+                Main.Assign assign = (Main.Assign) decoder.expression(i);
+                state.put((Main.Var) assign.left, assign.right);
+            }
+        }
+        Path journal = journalFile(generation);
+        long valid = 0;
+        if (Files.exists(journal)) {
+            try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ)) {
+                valid = replay(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), state);
+            }
+        }
+        channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        channel.position(valid);
+        deleteOlderThan(generation);
+
+        if (syncIntervalMillis > 0) {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushPeriodically();
+                }
+            }, "context-journal-" + directory.getFileName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        return state;
+    }
+
+    private long replay(MappedByteBuffer buffer, Map<Main.Var, Main.Exp> state) {
+        int position = 0;
+        CRC32 check = new CRC32();
+        while (buffer.limit() - position >= HEADER) {
+            int length = buffer.getInt(position);
+            if (length < 1 || length > buffer.limit() - position - HEADER) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.limit(position + HEADER + length);
+            record.position(position + HEADER);
+            check.reset();
+            check.update(record.duplicate());
+            if ((int) check.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            byte op = record.get();
+            if (op == PUT) {
+                Main.Assign assign = (Main.Assign) new ExpDecoder(record).expression(0);
+                state.put((Main.Var) assign.left, assign.right);
+            } else if (op == REMOVE) {
+                state.remove(new ExpDecoder(record).expression(0));
+            } else if (op == CLEAR) {
+                state.clear();
+            } else {
+                break;
+            }
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return sequence number to pass to {@link #sync(long)}
+     */
+    long put(Main.Var var, Main.Exp exp) {
+        return append(PUT, encode(new Main.Assign(var, exp)));
+    }
+
+    long remove(Main.Var var) {
+        return append(REMOVE, encode(var));
+    }
+
+    long clear() {
+        return append(CLEAR, ByteBuffer.allocate(0));
+    }
+
+    private static ByteBuffer encode(Main.Exp exp) {
+        ExpEncoder encoder = new ExpEncoder();
+        encoder.add(exp);
+        return encoder.encode();
+    }
+
+    private synchronized long append(byte op, ByteBuffer payload) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Journal cannot be written", failure);
+        }
+        int length = 1 + payload.remaining();
+        if (pending.remaining() < HEADER + length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + HEADER + length));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        crc.reset();
+        crc.update(op);
+        crc.update(payload.duplicate());
+        pending.putInt(length).putInt((int) crc.getValue()).put(op).put(payload);
+        recordsSinceSnapshot++;
+        return ++appended;
+    }
+
+    /**
+     * Returns once the record with this sequence number and all before it are on disk.
+     */
+    void sync(long sequence) throws IOException {
+        ByteBuffer batch;
+        long upTo;
+        synchronized (this) {
+            while (syncing && durable < sequence) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            if (failure != null) {
+                throw new IOException("Journal cannot be written", failure);
+            }
+            syncing = true;
+            batch = pending;
+            pending = writing;
+            writing = batch;
+            upTo = appended;
+        }
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = new IOException("Journal write failed", e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (error == null) {
+                    batch.clear();
+                    durable = upTo;
+                    syncs++;
+                } else {
+                    // the batch is kept, part of it may already be in the file
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        sync(appendedSequence());
+    }
+
+    private synchronized long appendedSequence() {
+        return appended;
+    }
+
+    /**
+     * Replaces the snapshot and the journal by a snapshot of the given state,
+     * which must include every appended change. Must not run concurrently
+     * with appends.
+     */
+    void snapshot(Map<Main.Var, Main.Exp> state) throws IOException {
+        flush();
+        ExpEncoder encoder = new ExpEncoder();
+        for (Map.Entry<Main.Var, Main.Exp> entry : state.entrySet()) {
+            encoder.add(new Main.Assign(entry.getKey(), entry.getValue()));
+        }
+        long next = generation + 1;
+        Path temporary = directory.resolve("snapshot-" + next + ".tmp");
+        ByteBuffer encoded = encoder.encode();
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (encoded.hasRemaining()) {
+                out.write(encoded);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, snapshotFile(next), StandardCopyOption.ATOMIC_MOVE);
+        FileChannel nextChannel = FileChannel.open(journalFile(next), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel previous;
+        synchronized (this) {
+            while (syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    nextChannel.close();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            previous = channel;
+            channel = nextChannel;
+            generation = next;
+            recordsSinceSnapshot = 0;
+        }
+        previous.close();
+        deleteOlderThan(next);
+        syncDirectory();
+    }
+
+    synchronized long getRecordsSinceSnapshot() {
+        return recordsSinceSnapshot;
+    }
+
+    synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stops the background thread, letting a sync it has started finish, then
+     * syncs what is left and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            boolean interrupted = false;
+            while (flusher.isAlive()) {
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flushPeriodically() {
+        while (awaitInterval()) {
+            try {
+                flush();
+            } catch (IOException e) {
+                // recorded as the journal's failure, appends report it
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false once the journal is closed
+     */
+    private synchronized boolean awaitInterval() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        long remaining;
+        while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !closed;
+    }
+
+    private void deleteOlderThan(long current) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && (Long.parseLong(matcher.group(2)) < current || matcher.group(3).equals("tmp"))) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the renamed snapshot durable where the platform allows forcing a directory.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path snapshotFile(long generation) {
+        return directory.resolve("snapshot-" + generation + ".bin");
+    }
+
+    private Path journalFile(long generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+}
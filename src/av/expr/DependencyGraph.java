@@ -0,0 +1,160 @@
+package av.expr;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spreadsheet style context: keeps each variable's definition together with
+ * its resolved value and tracks which definitions reference which variables.
+ * Redefining a variable recomputes only that variable and the definitions
+ * that transitively depend on it, in topological order. Definitions that
+ * would form a cycle are rejected.
+ * <p>
+ * {@link #values()} can be passed as the context of {@link Main.Evaluator},
+ * every entry is already resolved so variable lookups do not re-evaluate
+ * definition chains.
+ */
+public class DependencyGraph {
+    private final Map<Main.Var, Main.Exp> definitions = new HashMap<>();
+    private final Map<Main.Var, Main.Exp> values = new HashMap<>();
+    private final Map<Main.Var, Set<Main.Var>> dependencies = new HashMap<>();
+    private final Map<Main.Var, Set<Main.Var>> dependents = new HashMap<>();
+    private long recomputations;
+
+    /**
+     * Sets the definition of the variable and recomputes everything that depends on it.
+     *
+     * @return resolved value of the variable, a number or a simplified expression
+     * over undefined variables
+     * @throws IllegalArgumentException if the definition would create a cycle, the
+     * graph is left unchanged in that case
+     */
+    public Main.Exp define(Main.Var var, Main.Exp definition) {
+        Set<Main.Var> references = new LinkedHashSet<>(Main.freeVariables(definition));
+        checkAcyclic(var, references);
+
+        Set<Main.Var> previous = dependencies.put(var, references);
+        if (previous != null) {
+            for (Main.Var dependency : previous) {
+                dependents.get(dependency).remove(var);
+            }
+        }
+        for (Main.Var dependency : references) {
+            Set<Main.Var> users = dependents.get(dependency);
+            if (users == null) {
+                users = new HashSet<>();
+                dependents.put(dependency, users);
+            }
+            users.add(var);
+        }
+        definitions.put(var, definition);
+
+        recompute(affectedBy(var));
+        return values.get(var);
+    }
+
+    public Main.Exp getDefinition(Main.Var var) {
+        return definitions.get(var);
+    }
+
+    public Main.Exp getValue(Main.Var var) {
+        return values.get(var);
+    }
+
+    /**
+     * @return read only view of the resolved values of all defined variables
+     */
+    public Map<Main.Var, Main.Exp> values() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return number of definitions evaluated since the graph was created
+     */
+    public long getRecomputations() {
+        return recomputations;
+    }
+
+    private void checkAcyclic(Main.Var var, Set<Main.Var> references) {
+        Set<Main.Var> visited = new HashSet<>();
+        ArrayDeque<Main.Var> pending = new ArrayDeque<>(references);
+        while (!pending.isEmpty()) {
+            Main.Var next = pending.pop();
+            if (next.equals(var)) {
+                throw new IllegalArgumentException("Cyclic definition of " + var.getName());
+            }
+            if (visited.add(next)) {
+                Set<Main.Var> nextDependencies = dependencies.get(next);
+                if (nextDependencies != null) {
+                    pending.addAll(nextDependencies);
+                }
+            }
+        }
+    }
+
+    private Set<Main.Var> affectedBy(Main.Var var) {
+        Set<Main.Var> affected = new LinkedHashSet<>();
+        ArrayDeque<Main.Var> pending = new ArrayDeque<>();
+        pending.add(var);
+        while (!pending.isEmpty()) {
+            Main.Var next = pending.poll();
+            if (affected.add(next)) {
+                Set<Main.Var> users = dependents.get(next);
+                if (users != null) {
+                    pending.addAll(users);
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Evaluates the dirty definitions so that every definition runs after the
+     * dirty definitions it references.
+     */
+    private void recompute(Set<Main.Var> dirty) {
+        Map<Main.Var, Integer> waitingFor = new HashMap<>();
+        ArrayDeque<Main.Var> ready = new ArrayDeque<>();
+        for (Main.Var var : dirty) {
+            int count = 0;
+            for (Main.Var dependency : dependencies.get(var)) {
+                if (dirty.contains(dependency)) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                ready.add(var);
+            } else {
+                waitingFor.put(var, count);
+            }
+        }
+
+        while (!ready.isEmpty()) {
+            Main.Var var = ready.poll();
+            Main.Evaluator evaluator = new Main.Evaluator(values, false);
+            definitions.get(var).accept(evaluator);
+            values.put(var, evaluator.getResult());
+            recomputations++;
+
+            Set<Main.Var> users = dependents.get(var);
+            if (users != null) {
+                for (Main.Var user : users) {
+                    Integer count = waitingFor.get(user);
+                    if (count != null) {
+                        if (count == 1) {
+                            waitingFor.remove(user);
+                            ready.add(user);
+                        } else {
+                            waitingFor.put(user, count - 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
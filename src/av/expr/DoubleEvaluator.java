@@ -0,0 +1,220 @@
+package av.expr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Strict evaluator that computes a fully bound expression as a primitive
+ * double. Unlike {@link Main.Evaluator} it keeps no operand queue and creates
+ * no intermediate {@link Main.Num} nodes. Each variable's definition is
+ * evaluated at most once per evaluator. Recursion stops at
+ * {@link #RECURSION_LIMIT} levels and deeper subtrees are walked with explicit
+ * stacks on the heap, so arbitrarily deep trees are safe while shallow ones
+ * keep the speed of plain recursion. A variable whose definition refers back
+ * to itself is rejected rather than expanded forever.
+ */
+class DoubleEvaluator {
+    // deeper subtrees are evaluated without recursion
+    static final int RECURSION_LIMIT = 256;
+    // frame states: operator walking its left or right operand, variable being resolved
+    private static final byte LEFT = 0;
+    private static final byte RIGHT = 1;
+    private static final byte RESOLVED = 2;
+
+    private final Map<Main.Var, Main.Exp> context;
+    private Map<Main.Var, Double> resolved;
+    // variables whose definitions are being evaluated
+    private final Set<Main.Var> resolving = new HashSet<>();
+    private Map<Main.Exp, Double> shared;
+    // frames and operands of the explicit-stack walk, allocated on the first
+    // deep tree and reused; they grow with the depth of the tree
+    private Main.Exp[] work;
+    private byte[] states;
+    private double[] operands;
+
+    DoubleEvaluator(Map<Main.Var, Main.Exp> context) {
+        this.context = context;
+    }
+
+    /**
+     * Evaluates every node instance once, for expressions whose subtrees are shared.
+     */
+    DoubleEvaluator shareSubexpressions() {
+        shared = new IdentityHashMap<>();
+        return this;
+    }
+
+    double evaluate(Main.Exp exp) {
+        return evaluate(exp, 0);
+    }
+
+    private double evaluate(Main.Exp exp, int depth) {
+        if (exp instanceof Main.Num) {
+            return ((Main.Num) exp).doubleValue();
+        }
+        if (depth == RECURSION_LIMIT) {
+            return walk(exp);
+        }
+        if (exp instanceof Main.Var) {
+            return resolve((Main.Var) exp, depth);
+        }
+        if (exp instanceof Main.Sum || exp instanceof Main.Sub || exp instanceof Main.Mul || exp instanceof Main.Dev) {
+            Main.BiExp biExp = (Main.BiExp) exp;
+            if (shared == null) {
+                return apply(biExp, evaluate(biExp.left, depth + 1), evaluate(biExp.right, depth + 1));
+            }
+            Double value = shared.get(exp);
+            if (value == null) {
+                value = apply(biExp, evaluate(biExp.left, depth + 1), evaluate(biExp.right, depth + 1));
+                shared.put(exp, value);
+            }
+            return value;
+        }
+        throw new IllegalArgumentException("Cannot evaluate " + exp.getClass().getSimpleName());
+    }
+
+    private double resolve(Main.Var var, int depth) {
+        Double value = resolved != null ? resolved.get(var) : null;
+        if (value != null) {
+            return value;
+        }
+        Main.Exp definition = context.get(var);
+        if (definition == null) {
+            throw new IllegalArgumentException("Undefined variable " + var.getName());
+        }
+        startResolving(var);
+        double result;
+        try {
+            result = evaluate(definition, depth + 1);
+        } finally {
+            resolving.remove(var);
+        }
+        if (resolved == null) {
+            resolved = new HashMap<>();
+        }
+        resolved.put(var, result);
+        return result;
+    }
+
+    /**
+     * Evaluates a subtree below the recursion limit with explicit stacks of
+     * frames and operands. Does not call back into the recursive evaluation.
+     */
+    private double walk(Main.Exp exp) {
+        if (work == null) {
+            work = new Main.Exp[64];
+            states = new byte[64];
+            operands = new double[64];
+        }
+        // the stacks live in locals during the walk, the fields only keep them for reuse
+        Main.Exp[] work = this.work;
+        byte[] states = this.states;
+        double[] operands = this.operands;
+        int top = 0;
+        int size = 0;
+        Main.Exp node = exp;
+        try {
+            while (true) {
+                // follow left operands and definitions down to a value, with a frame for each step
+                double value;
+                while (true) {
+                    if (node instanceof Main.Num) {
+                        value = ((Main.Num) node).doubleValue();
+                        break;
+                    }
+                    byte state;
+                    Main.Exp next;
+                    if (node instanceof Main.Var) {
+                        Double known = resolved != null ? resolved.get(node) : null;
+                        if (known != null) {
+                            value = known;
+                            break;
+                        }
+                        next = context.get(node);
+                        if (next == null) {
+                            throw new IllegalArgumentException("Undefined variable " + ((Main.Var) node).getName());
+                        }
+                        if (resolved == null) {
+                            resolved = new HashMap<>();
+                        }
+                        startResolving((Main.Var) node);
+                        state = RESOLVED;
+                    } else if (node instanceof Main.Sum || node instanceof Main.Sub || node instanceof Main.Mul || node instanceof Main.Dev) {
+                        Double known = shared != null ? shared.get(node) : null;
+                        if (known != null) {
+                            value = known;
+                            break;
+                        }
+                        state = LEFT;
+                        next = ((Main.BiExp) node).left;
+                    } else {
+                        throw new IllegalArgumentException("Cannot evaluate " + node.getClass().getSimpleName());
+                    }
+                    if (top == work.length) {
+                        this.work = work = Arrays.copyOf(work, top * 2);
+                        this.states = states = Arrays.copyOf(states, top * 2);
+                    }
+                    work[top] = node;
+                    states[top++] = state;
+                    node = next;
+                }
+                if (size == operands.length) {
+                    this.operands = operands = Arrays.copyOf(operands, size * 2);
+                }
+                operands[size++] = value;
+
+                // pop finished frames until one still has a right operand to walk
+                while (true) {
+                    if (top == 0) {
+                        return operands[0];
+                    }
+                    int frame = top - 1;
+                    Main.Exp finished = work[frame];
+                    if (states[frame] == LEFT) {
+                        states[frame] = RIGHT;
+                        node = ((Main.BiExp) finished).right;
+                        break;
+                    }
+                    work[frame] = null;
+                    top = frame;
+                    if (states[frame] == RIGHT) {
+                        double right = operands[--size];
+                        double result = apply((Main.BiExp) finished, operands[size - 1], right);
+                        operands[size - 1] = result;
+                        if (shared != null) {
+                            shared.put(finished, result);
+                        }
+                    } else {
+                        resolving.remove(finished);
+                        resolved.put((Main.Var) finished, operands[size - 1]);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            for (int frame = 0; frame < top; frame++) {
+                if (states[frame] == RESOLVED) {
+                    resolving.remove(work[frame]);
+                }
+            }
+            Arrays.fill(work, 0, top, null);
+            throw e;
+        }
+    }
+
+    private void startResolving(Main.Var var) {
+        if (!resolving.add(var)) {
+            throw new IllegalArgumentException("Cyclic definition of " + var.getName());
+        }
+    }
+
+    private static double apply(Main.BiExp exp, double left, double right) {
+        if (exp instanceof Main.Sum) return left + right;
+        if (exp instanceof Main.Sub) return left - right;
+        if (exp instanceof Main.Mul) return left * right;
+        return left / right;
+    }
+}
@@ -0,0 +1,129 @@
+package av.expr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * {@link VersionedContext} that survives restarts. Every change is appended
+ * to a {@link ContextJournal} in the given directory before it is applied,
+ * and after {@code snapshotEvery} changes the journal is compacted into a
+ * snapshot of the current definitions. Opening the directory again restores
+ * the definitions from the latest snapshot and the few changes journaled
+ * after it, so recovery takes time in proportion to the number of
+ * definitions, not to the number of statements ever run.
+ * <p>
+ * With a sync interval of 0 a change is on disk before it is applied, so a
+ * change that cannot be written leaves the context as it was.
+ * With a positive interval changes are written in batches by a background
+ * thread and the last interval of changes may be lost in a crash;
+ * {@link #flush()} and {@link #close()} write everything. Like
+ * {@link VersionedContext}, instances are not thread-safe.
+ */
+public class DurableContext extends VersionedContext implements Closeable {
+    public static final int DEFAULT_SNAPSHOT_EVERY = 10000;
+
+    private final ContextJournal journal;
+    private final boolean syncEachChange;
+    private final int snapshotEvery;
+
+    public DurableContext(Path directory) throws IOException {
+        this(directory, 0, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    /**
+     * @param syncIntervalMillis 0 to sync every change, otherwise the longest time a change stays unsynced
+     * @param snapshotEvery      number of journaled changes after which the journal is compacted
+     */
+    public DurableContext(Path directory, long syncIntervalMillis, int snapshotEvery) throws IOException {
+        this(new ContextJournal(directory, syncIntervalMillis), syncIntervalMillis == 0, snapshotEvery);
+    }
+
+    private DurableContext(ContextJournal journal, boolean syncEachChange, int snapshotEvery) throws IOException {
+        super(journal.recover());
+        this.journal = journal;
+        this.syncEachChange = syncEachChange;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    @Override
+    public Main.Exp put(Main.Var key, Main.Exp value) {
+        journaled(journal.put(key, value));
+        Main.Exp previous = super.put(key, value);
+        applied();
+        return previous;
+    }
+
+    @Override
+    public Main.Exp remove(Object key) {
+        if (!containsKey(key)) {
+            return null;
+        }
+        journaled(journal.remove((Main.Var) key));
+        Main.Exp previous = super.remove(key);
+        applied();
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        journaled(journal.clear());
+        super.clear();
+        applied();
+    }
+
+    /**
+     * Writes and syncs every change made so far.
+     */
+    public void flush() throws IOException {
+        journal.flush();
+    }
+
+    /**
+     * Compacts the journal into a snapshot of the current definitions now.
+     */
+    public void snapshot() throws IOException {
+        journal.snapshot(this);
+    }
+
+    /**
+     * @return number of fsyncs of the journal, one per batch of changes
+     */
+    public long getSyncCount() {
+        return journal.getSyncCount();
+    }
+
+    public long getJournaledSinceSnapshot() {
+        return journal.getRecordsSinceSnapshot();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Syncs the change, when every change is synced, before it is applied.
+     */
+    private void journaled(long sequence) {
+        if (!syncEachChange) {
+            return;
+        }
+        try {
+            journal.sync(sequence);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write context journal", e);
+        }
+    }
+
+    private void applied() {
+        if (journal.getRecordsSinceSnapshot() < snapshotEvery) {
+            return;
+        }
+        try {
+            journal.snapshot(this);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write context journal", e);
+        }
+    }
+}
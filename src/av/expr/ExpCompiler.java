@@ -0,0 +1,417 @@
+package av.expr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles an expression tree into a hidden class implementing
+ * {@link CompiledExpression}. The generated method is a single basic block of
+ * double arithmetic that HotSpot can inline, so there is no visitor dispatch
+ * left at evaluation time. The arithmetic is the same IEEE double arithmetic
+ * {@link DoubleEvaluator} performs, so results are identical.
+ * <p>
+ * A tree whose constants are all integral can also be compiled to long code
+ * implementing {@link CompiledLongExpression}, with the checked arithmetic of
+ * {@link Main.Evaluator}: where that arithmetic would promote to double, the
+ * code throws {@link ArithmeticException} instead.
+ */
+class ExpCompiler {
+    private static final String CLASS_NAME = "av/expr/GeneratedExpression";
+    private static final int CLASS_VERSION = 52;
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int LCONST_0 = 0x09;
+    private static final int LCONST_1 = 0x0a;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int LALOAD = 0x2f;
+    private static final int DALOAD = 0x31;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int LRETURN = 0xad;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * Compiles the expression with one slot per free variable, in order of
+     * first appearance (see {@link Main#freeVariables(Main.Exp)}).
+     */
+    static CompiledExpression compile(Main.Exp exp) {
+        return compile(exp, Main.freeVariables(exp));
+    }
+
+    static CompiledExpression compile(Main.Exp exp, List<Main.Var> slots) {
+        return (CompiledExpression) load(new ClassWriter(exp, slots, false).toByteArray());
+    }
+
+    /**
+     * @throws IllegalArgumentException if a constant is not integral or the tree is too large
+     */
+    static CompiledLongExpression compileLong(Main.Exp exp, List<Main.Var> slots) {
+        return (CompiledLongExpression) load(new ClassWriter(exp, slots, true).toByteArray());
+    }
+
+    private static Object load(byte[] bytes) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled expression", e);
+        }
+    }
+
+    /**
+     * Quotient for the long code, which only continues with whole quotients.
+     */
+    static long divideExact(long dividend, long divisor) {
+        // Long.MIN_VALUE / -1 is the one quotient that overflows
+        if (divisor == 0 || dividend % divisor != 0 || (divisor == -1 && dividend == Long.MIN_VALUE)) {
+            throw new ArithmeticException("Inexact quotient");
+        }
+        return dividend / divisor;
+    }
+
+    private static class ClassWriter {
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<Object, Integer> poolIndex = new HashMap<>();
+        private int poolSize = 1;
+
+        private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        private final Map<Main.Var, Integer> slots = new HashMap<>();
+        private final boolean integral;
+        // methods called by the long code for the operators
+        private int addExact;
+        private int subtractExact;
+        private int multiplyExact;
+        private int divideExact;
+        private int stack;
+        private int maxStack;
+
+        private final byte[] bytes;
+
+        ClassWriter(Main.Exp exp, List<Main.Var> slotOrder, boolean integral) {
+            this.integral = integral;
+            for (int i = 0; i < slotOrder.size(); i++) {
+                slots.put(slotOrder.get(i), i);
+            }
+            try {
+                bytes = write(exp);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] toByteArray() {
+            return bytes;
+        }
+
+        private byte[] write(Main.Exp exp) throws IOException {
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int anInterface = classRef(integral ? "av/expr/CompiledLongExpression" : "av/expr/CompiledExpression");
+            int objectInit = methodRef(superClass, "<init>", "()V");
+            int init = utf8("<init>");
+            int initType = utf8("()V");
+            int evaluate = utf8("evaluate");
+            int evaluateType = utf8(integral ? "([J)J" : "([D)D");
+            int code = utf8("Code");
+            if (integral) {
+                int math = classRef("java/lang/Math");
+                addExact = methodRef(math, "addExact", "(JJ)J");
+                subtractExact = methodRef(math, "subtractExact", "(JJ)J");
+                multiplyExact = methodRef(math, "multiplyExact", "(JJ)J");
+                divideExact = methodRef(classRef("av/expr/ExpCompiler"), "divideExact", "(JJ)J");
+            }
+
+            emit(exp);
+            codeBytes.write(integral ? LRETURN : DRETURN);
+            if (codeBytes.size() > MAX_CODE_LENGTH || maxStack > 0xFFFF) {
+                throw new IllegalArgumentException("Expression is too large to compile");
+            }
+
+            ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(classBytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(anInterface);
+            out.writeShort(0);
+
+            out.writeShort(2);
+            writeMethod(out, init, initType, code, 1, 1,
+                    new byte[]{ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN});
+            writeMethod(out, evaluate, evaluateType, code, maxStack, 2, codeBytes.toByteArray());
+
+            out.writeShort(0);
+            out.flush();
+            return classBytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int type, int codeAttribute,
+                                        int maxStack, int maxLocals, byte[] code) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        /**
+         * Emits the tree in postfix order with an explicit stack and gives up
+         * as soon as the code outgrows a method, so deep or huge trees are
+         * rejected without exhausting the thread stack or the heap.
+         */
+        private void emit(Main.Exp exp) {
+            Deque<Main.Exp> pending = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            pending.push(exp);
+            expanded.push(Boolean.FALSE);
+            while (!pending.isEmpty()) {
+                Main.Exp node = pending.pop();
+                boolean done = expanded.pop();
+                if (node instanceof Main.BiExp && !done) {
+                    pending.push(node);
+                    expanded.push(Boolean.TRUE);
+                    pending.push(((Main.BiExp) node).right);
+                    expanded.push(Boolean.FALSE);
+                    pending.push(((Main.BiExp) node).left);
+                    expanded.push(Boolean.FALSE);
+                    continue;
+                }
+                emitNode(node);
+                if (codeBytes.size() > MAX_CODE_LENGTH) {
+                    throw new IllegalArgumentException("Expression is too large to compile");
+                }
+            }
+        }
+
+        private void emitNode(Main.Exp exp) {
+            if (exp instanceof Main.Num) {
+                Main.Num num = (Main.Num) exp;
+                if (!integral) {
+                    pushConstant(num.doubleValue());
+                } else if (num.isIntegral()) {
+                    pushConstant(num.longValue());
+                } else {
+                    throw new IllegalArgumentException("Cannot compile " + num.doubleValue() + " to long code");
+                }
+            } else if (exp instanceof Main.Var) {
+                Integer slot = slots.get(exp);
+                if (slot == null) {
+                    throw new IllegalArgumentException("No slot for variable " + ((Main.Var) exp).getName());
+                }
+                codeBytes.write(ALOAD_1);
+                grow(1);
+                pushInt(slot);
+                codeBytes.write(integral ? LALOAD : DALOAD);
+            } else if (exp instanceof Main.BiExp) {
+                Main.BiExp biExp = (Main.BiExp) exp;
+                if (integral) {
+                    codeBytes.write(INVOKESTATIC);
+                    writeShort(exactMethod(biExp));
+                } else {
+                    codeBytes.write(opcode(biExp));
+                }
+                grow(-2);
+            } else {
+                throw new IllegalArgumentException("Cannot compile " + exp.getClass().getSimpleName());
+            }
+        }
+
+        private static int opcode(Main.BiExp exp) {
+            if (exp instanceof Main.Sum) return DADD;
+            if (exp instanceof Main.Sub) return DSUB;
+            if (exp instanceof Main.Mul) return DMUL;
+            if (exp instanceof Main.Dev) return DDIV;
+            throw new IllegalArgumentException("Cannot compile " + exp.getClass().getSimpleName());
+        }
+
+        private int exactMethod(Main.BiExp exp) {
+            if (exp instanceof Main.Sum) return addExact;
+            if (exp instanceof Main.Sub) return subtractExact;
+            if (exp instanceof Main.Mul) return multiplyExact;
+            if (exp instanceof Main.Dev) return divideExact;
+            throw new IllegalArgumentException("Cannot compile " + exp.getClass().getSimpleName());
+        }
+
+        private void pushConstant(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                codeBytes.write(DCONST_0);
+            } else if (value == 1.0) {
+                codeBytes.write(DCONST_1);
+            } else {
+                int index = doubleConstant(value);
+                codeBytes.write(LDC2_W);
+                writeShort(index);
+            }
+            grow(2);
+        }
+
+        private void pushConstant(long value) {
+            if (value == 0L) {
+                codeBytes.write(LCONST_0);
+            } else if (value == 1L) {
+                codeBytes.write(LCONST_1);
+            } else {
+                codeBytes.write(LDC2_W);
+                writeShort(longConstant(value));
+            }
+            grow(2);
+        }
+
+        private void pushInt(int value) {
+            if (value <= 5) {
+                codeBytes.write(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                codeBytes.write(BIPUSH);
+                codeBytes.write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                codeBytes.write(SIPUSH);
+                writeShort(value);
+            } else {
+                codeBytes.write(LDC_W);
+                writeShort(intConstant(value));
+            }
+            grow(1);
+        }
+
+        private void grow(int words) {
+            stack += words;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void writeShort(int value) {
+            codeBytes.write(value >> 8);
+            codeBytes.write(value);
+        }
+
+        private int utf8(String value) throws IOException {
+            Integer index = poolIndex.get(value);
+            if (index == null) {
+                pool.writeByte(CONSTANT_UTF8);
+                pool.writeUTF(value);
+                index = addEntry(value, 1);
+            }
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            int nameIndex = utf8(name);
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(nameIndex);
+            return addEntry(new Object(), 1);
+        }
+
+        private int methodRef(int owner, String name, String type) throws IOException {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+            int nameAndType = addEntry(new Object(), 1);
+            pool.writeByte(CONSTANT_METHODREF);
+            pool.writeShort(owner);
+            pool.writeShort(nameAndType);
+            return addEntry(new Object(), 1);
+        }
+
+        private int doubleConstant(double value) {
+            Double key = value;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                try {
+                    pool.writeByte(CONSTANT_DOUBLE);
+                    pool.writeDouble(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                index = addEntry(key, 2);
+            }
+            return index;
+        }
+
+        private int longConstant(long value) {
+            Long key = value;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                try {
+                    pool.writeByte(CONSTANT_LONG);
+                    pool.writeLong(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                index = addEntry(key, 2);
+            }
+            return index;
+        }
+
+        private int intConstant(int value) {
+            Integer key = value;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                try {
+                    pool.writeByte(CONSTANT_INTEGER);
+                    pool.writeInt(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                index = addEntry(key, 1);
+            }
+            return index;
+        }
+
+        private int addEntry(Object key, int width) {
+            int index = poolSize;
+            poolSize += width;
+            if (poolSize > 0xFFFF) {
+                throw new IllegalArgumentException("Expression is too large to compile");
+            }
+            poolIndex.put(key, index);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package av.expr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads entries written by {@link ExpEncoder} straight from a buffer, which
+ * may be a memory mapped file. Only the constant pool and the symbol table
+ * are decoded up front; an entry is decoded when it is asked for, so opening a
+ * file with millions of formulas costs the same as opening one with a few.
+ * <p>
+ * The buffer is never modified, reads are absolute, and any number of
+ * threads may decode entries of the same decoder at once. Every count, index
+ * and offset read from the buffer is checked, so truncated or corrupt data
+ * fails with an {@link IllegalArgumentException}.
+ */
+public class ExpDecoder {
+    private final ByteBuffer buffer;
+    private final Main.Num[] numbers;
+    private final Main.Var[] symbols;
+    private final ExpParser.VarToken[] varTokens;
+    private final int count;
+    private final int table;
+    private final int nodes;
+
+    public ExpDecoder(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        Cursor cursor = new Cursor(0, this.buffer.limit());
+        if (this.buffer.limit() < 4 || this.buffer.getInt(0) != ExpEncoder.MAGIC) {
+            throw new IllegalArgumentException("Not an encoded expression file");
+        }
+        cursor.position = 4;
+        int version = cursor.varint();
+        // version 1 is version 2 without LONG constants
+        if (version < 1 || version > ExpEncoder.VERSION) {
+            throw new IllegalArgumentException("Unsupported format version " + version);
+        }
+
+        // every constant takes at least two bytes, every symbol one
+        numbers = new Main.Num[cursor.count(2)];
+        for (int i = 0; i < numbers.length; i++) {
+            byte kind = cursor.get();
+            switch (kind) {
+                case ExpEncoder.DOUBLE:
+                    numbers[i] = new Main.Num(Double.longBitsToDouble(cursor.getLong()));
+                    break;
+                case ExpEncoder.INTEGRAL:
+                    numbers[i] = new Main.Num((double) unzigzag(cursor.varlong()));
+                    break;
+                case ExpEncoder.LONG:
+                    numbers[i] = new Main.Num(unzigzag(cursor.varlong()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant kind " + kind);
+            }
+        }
+
+        symbols = new Main.Var[cursor.count(1)];
+        varTokens = new ExpParser.VarToken[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            byte[] utf8 = new byte[cursor.count(1)];
+            for (int j = 0; j < utf8.length; j++) {
+                utf8[j] = cursor.get();
+            }
+            String name = new String(utf8, StandardCharsets.UTF_8);
+            symbols[i] = new Main.Var(name);
+            varTokens[i] = name.length() == 1 ? ExpParser.VarToken.of(name.charAt(0)) : new ExpParser.VarToken(name);
+        }
+
+        count = cursor.count(4);
+        table = cursor.position;
+        if ((long) table + 4L * (count + 1L) > this.buffer.limit()) {
+            throw new IllegalArgumentException("Truncated expression file");
+        }
+        nodes = table + 4 * (count + 1);
+        int length = this.buffer.getInt(table + 4 * count);
+        if (length < 0 || length > this.buffer.limit() - nodes) {
+            throw new IllegalArgumentException("Truncated expression file");
+        }
+    }
+
+    /**
+     * Maps the file read-only; the mapping stays valid after this method returns.
+     */
+    public static ExpDecoder map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ExpDecoder(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Main.Exp expression(int index) {
+        return expression(index, ExpFactory.DEFAULT);
+    }
+
+    /**
+     * Builds the tree of an entry with the factory. Constants and variables
+     * of the default factory are shared between all trees of this decoder.
+     *
+     * @throws IllegalArgumentException if the entry is a token stream with brackets
+     */
+    public Main.Exp expression(int index, ExpFactory factory) {
+        Cursor cursor = entry(index);
+        Main.Exp[] stack = new Main.Exp[16];
+        int top = 0;
+        while (cursor.position < cursor.end) {
+            int tag = cursor.varint();
+            int kind = tag & (1 << ExpEncoder.KIND_BITS) - 1;
+            int operand = tag >>> ExpEncoder.KIND_BITS;
+            Main.Exp node;
+            switch (kind) {
+                case ExpEncoder.NUM:
+                    checkOperand(operand, numbers.length, index);
+                    node = factory == ExpFactory.DEFAULT ? numbers[operand] : factory.num(numbers[operand]);
+                    break;
+                case ExpEncoder.VAR:
+                    checkOperand(operand, symbols.length, index);
+                    node = factory.var(symbols[operand]);
+                    break;
+                case ExpEncoder.BRACKET:
+                    throw new IllegalArgumentException("Entry " + index + " is a token stream with brackets");
+                default:
+                    if (top < 2) {
+                        throw corrupt(index);
+                    }
+                    Main.Exp right = stack[--top];
+                    Main.Exp left = stack[--top];
+                    node = binary(kind, left, right, factory);
+            }
+            if (top == stack.length) {
+                stack = Arrays.copyOf(stack, top * 2);
+            }
+            stack[top++] = node;
+        }
+        if (top != 1) {
+            throw corrupt(index);
+        }
+        return stack[0];
+    }
+
+    /**
+     * @throws IllegalArgumentException if the entry is a tree with an assignment
+     */
+    public List<ExpParser.Token> tokens(int index) {
+        Cursor cursor = entry(index);
+        TokenBuffer tokens = new TokenBuffer();
+        while (cursor.position < cursor.end) {
+            int tag = cursor.varint();
+            int operand = tag >>> ExpEncoder.KIND_BITS;
+            switch (tag & (1 << ExpEncoder.KIND_BITS) - 1) {
+                case ExpEncoder.NUM:
+                    checkOperand(operand, numbers.length, index);
+                    Main.Num number = numbers[operand];
+                    tokens.add(number.isIntegral() ? new ExpParser.NumberToken(number.longValue())
+                            : new ExpParser.NumberToken(number.doubleValue()));
+                    break;
+                case ExpEncoder.VAR:
+                    checkOperand(operand, symbols.length, index);
+                    tokens.add(varTokens[operand]);
+                    break;
+                case ExpEncoder.SUM:
+                    tokens.add(ExpParser.PLUS);
+                    break;
+                case ExpEncoder.SUB:
+                    tokens.add(ExpParser.MINUS);
+                    break;
+                case ExpEncoder.MUL:
+                    tokens.add(ExpParser.MULTIPLE_SIGN);
+                    break;
+                case ExpEncoder.DEV:
+                    tokens.add(ExpParser.DIVISION_SIGN);
+                    break;
+                case ExpEncoder.BRACKET:
+                    tokens.add(operand == 0 ? ExpParser.OPEN_BRACKET : ExpParser.CLOSE_BRACKET);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Entry " + index + " is an assignment, not a token stream");
+            }
+        }
+        return tokens;
+    }
+
+    private Cursor entry(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Entry: " + index + ", Size: " + count);
+        }
+        int start = buffer.getInt(table + 4 * index);
+        int end = buffer.getInt(table + 4 * index + 4);
+        // the area length was checked against the buffer when it was opened
+        if (start < 0 || start > end || end > buffer.getInt(table + 4 * count)) {
+            throw corrupt(index);
+        }
+        return new Cursor(nodes + start, nodes + end);
+    }
+
+    private static void checkOperand(int operand, int size, int index) {
+        if (operand >= size) {
+            throw corrupt(index);
+        }
+    }
+
+    private static Main.Exp binary(int kind, Main.Exp left, Main.Exp right, ExpFactory factory) {
+        switch (kind) {
+            case ExpEncoder.SUM:
+                return factory.sum(left, right);
+            case ExpEncoder.SUB:
+                return factory.sub(left, right);
+            case ExpEncoder.MUL:
+                return factory.mul(left, right);
+            case ExpEncoder.DEV:
+                return factory.dev(left, right);
+            case ExpEncoder.ASSIGN:
+                return new Main.Assign(left, right);
+            default:
+                throw new IllegalArgumentException("Unknown node tag " + kind);
+        }
+    }
+
+    private static IllegalArgumentException corrupt(int index) {
+        return new IllegalArgumentException("Corrupt entry " + index);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read position within a range of the buffer.
+     */
+    private class Cursor {
+        int position;
+        final int end;
+
+        Cursor(int position, int end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        byte get() {
+            if (position >= end) {
+                throw new IllegalArgumentException("Truncated expression file");
+            }
+            return buffer.get(position++);
+        }
+
+        long getLong() {
+            if (end - position < 8) {
+                throw new IllegalArgumentException("Truncated expression file");
+            }
+            long value = buffer.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        /**
+         * Reads the number of items that follow, each taking at least {@code bytes} bytes.
+         */
+        int count(int bytes) {
+            int count = varint();
+            if (count > (end - position) / bytes) {
+                throw new IllegalArgumentException("Truncated expression file");
+            }
+            return count;
+        }
+
+        int varint() {
+            if (position < end) {
+                byte b = buffer.get(position);
+                if (b >= 0) {
+                    position++;
+                    return b;
+                }
+            }
+            long value = varlong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Varint out of range at " + position);
+            }
+            return (int) value;
+        }
+
+        long varlong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= end) {
+                    throw new IllegalArgumentException("Truncated varint at " + position);
+                }
+                byte b = buffer.get(position++);
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at " + position);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package av.expr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes parsed expressions and postfix token streams in a compact binary
+ * format that {@link ExpDecoder} reads back without parsing text. All entries
+ * of one file share a constant pool and a symbol table.
+ * <p>
+ * Layout, integers big endian, varints unsigned LEB128:
+ * <pre>
+ * int     magic 'AVEX'
+ * varint  format version, 2 since LONG constants; version 1 files are read too
+ * varint  constant count, then per constant a kind byte and
+ *           DOUBLE:   8 byte IEEE 754 bits
+ *           INTEGRAL: zigzag varint of a double without fraction
+ *           LONG:     zigzag varint of an Integer, Long, Short or Byte
+ * varint  symbol count, then per symbol a varint length and UTF-8 bytes
+ * varint  entry count n
+ * int[n+1] offset of each entry in the node area, and the area length
+ * node area: per entry, its nodes in postfix order as varint tags
+ *           (operand &lt;&lt; 3) | kind, operand is the pool or table index for
+ *           NUM and VAR, 0 for operators, 0 or 1 for open or close BRACKET
+ * </pre>
+ * Postfix order makes a tree and its postfix token stream encode the same.
+ * Trees of any depth are written without recursion.
+ */
+public class ExpEncoder {
+    static final int MAGIC = 0x41564558;
+    static final int VERSION = 2;
+
+    static final int KIND_BITS = 3;
+    static final int NUM = 0;
+    static final int VAR = 1;
+    static final int SUM = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DEV = 5;
+    static final int ASSIGN = 6;
+    static final int BRACKET = 7;
+
+    static final byte DOUBLE = 0;
+    static final byte INTEGRAL = 1;
+    static final byte LONG = 2;
+
+    // integral doubles up to this magnitude are exact and written as varints
+    private static final double MAX_INTEGRAL = 1L << 53;
+
+    private final Map<Object, Integer> constants = new LinkedHashMap<>();
+    private final Map<String, Integer> symbols = new LinkedHashMap<>();
+    private final Bytes nodes = new Bytes(1024);
+    private int[] offsets = new int[16];
+    private int count;
+    // tags of the tree being added, in reverse postfix order
+    private int[] tags = new int[64];
+
+    /**
+     * @return index of the entry
+     */
+    public int add(Main.Exp exp) {
+        int tagCount = 0;
+        Deque<Main.Exp> pending = new ArrayDeque<>();
+        pending.push(exp);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            if (tagCount == tags.length) {
+                tags = Arrays.copyOf(tags, tagCount * 2);
+            }
+            tags[tagCount++] = tag(node);
+            if (node instanceof Main.BiExp) {
+                pending.push(((Main.BiExp) node).left);
+                pending.push(((Main.BiExp) node).right);
+            }
+        }
+        int start = nodes.length;
+        for (int i = tagCount - 1; i >= 0; i--) {
+            nodes.varint(tags[i]);
+        }
+        return entry(start);
+    }
+
+    /**
+     * @return index of the entry
+     */
+    public int add(List<ExpParser.Token> tokens) {
+        int start = nodes.length;
+        ExpParser.TokenVisitor writer = new ExpParser.TokenVisitor() {
+            @Override
+            public void visit(ExpParser.Plus plus) {
+                nodes.varint(SUM);
+            }
+
+            @Override
+            public void visit(ExpParser.Minus minus) {
+                nodes.varint(SUB);
+            }
+
+            @Override
+            public void visit(ExpParser.MultipleSign multipleSign) {
+                nodes.varint(MUL);
+            }
+
+            @Override
+            public void visit(ExpParser.DivisionSign divisionSign) {
+                nodes.varint(DEV);
+            }
+
+            @Override
+            public void visit(ExpParser.OpenBracket openBracket) {
+                nodes.varint(BRACKET);
+            }
+
+            @Override
+            public void visit(ExpParser.CloseBracket closeBracket) {
+                nodes.varint(1 << KIND_BITS | BRACKET);
+            }
+
+            @Override
+            public void visit(ExpParser.NumberToken numberToken) {
+                int index = numberToken.isIntegral()
+                        ? index(constants, numberToken.getIntegralValue()) : constant(numberToken.getNum());
+                nodes.varint(index << KIND_BITS | NUM);
+            }
+
+            @Override
+            public void visit(ExpParser.VarToken varToken) {
+                nodes.varint(symbol(varToken.getVar()) << KIND_BITS | VAR);
+            }
+        };
+        for (ExpParser.Token token : tokens) {
+            token.accept(writer);
+        }
+        return entry(start);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return buffer positioned at the start of the encoded entries
+     */
+    public ByteBuffer encode() {
+        Bytes header = new Bytes(64 + 4 * count);
+        header.putInt(MAGIC);
+        header.varint(VERSION);
+        header.varint(constants.size());
+        for (Object constant : constants.keySet()) {
+            if (constant instanceof Double) {
+                double value = (Double) constant;
+                if (value == Math.rint(value) && Math.abs(value) < MAX_INTEGRAL
+                        && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0)) {
+                    header.put(INTEGRAL);
+                    header.varlong(zigzag((long) value));
+                } else {
+                    header.put(DOUBLE);
+                    header.putLong(Double.doubleToRawLongBits(value));
+                }
+            } else {
+                header.put(LONG);
+                header.varlong(zigzag((Long) constant));
+            }
+        }
+        header.varint(symbols.size());
+        for (String symbol : symbols.keySet()) {
+            byte[] utf8 = symbol.getBytes(StandardCharsets.UTF_8);
+            header.varint(utf8.length);
+            header.put(utf8, utf8.length);
+        }
+        header.varint(count);
+        for (int i = 0; i < count; i++) {
+            header.putInt(offsets[i]);
+        }
+        header.putInt(nodes.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + nodes.length);
+        buffer.put(header.data, 0, header.length).put(nodes.data, 0, nodes.length);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void write(Path file) throws IOException {
+        ByteBuffer buffer = encode();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private int entry(int start) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count] = start;
+        return count++;
+    }
+
+    private int tag(Main.Exp node) {
+        if (node instanceof Main.Num) {
+            Main.Num num = (Main.Num) node;
+            if (num.isIntegral()) {
+                return index(constants, num.longValue()) << KIND_BITS | NUM;
+            }
+            return constant(num.doubleValue()) << KIND_BITS | NUM;
+        }
+        if (node instanceof Main.Var) return symbol(((Main.Var) node).getName()) << KIND_BITS | VAR;
+        if (node instanceof Main.Sum) return SUM;
+        if (node instanceof Main.Sub) return SUB;
+        if (node instanceof Main.Mul) return MUL;
+        if (node instanceof Main.Dev) return DEV;
+        if (node instanceof Main.Assign) return ASSIGN;
+        throw new IllegalArgumentException("Cannot encode " + node.getClass().getName());
+    }
+
+    private int constant(double value) {
+        return index(constants, value);
+    }
+
+    private int symbol(String name) {
+        return index(symbols, name);
+    }
+
+    private static <K> int index(Map<K, Integer> pool, K key) {
+        Integer index = pool.get(key);
+        if (index == null) {
+            index = pool.size();
+            pool.put(key, index);
+        }
+        return index;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Growable byte array with the writes the format needs.
+     */
+    private static class Bytes {
+        byte[] data;
+        int length;
+
+        Bytes(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void put(byte b) {
+            ensure(1);
+            data[length++] = b;
+        }
+
+        void put(byte[] bytes, int count) {
+            ensure(count);
+            System.arraycopy(bytes, 0, data, length, count);
+            length += count;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                data[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void varint(int value) {
+            varlong(value & 0xffffffffL);
+        }
+
+        void varlong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[length++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra < 0) {
+                throw new IllegalStateException("Encoding exceeds 2 GB");
+            }
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package av.expr;
+
+/**
+ * Creates expression nodes for the parser. The default factory allocates a
+ * new node every time, {@link HashConsingFactory} shares equal nodes.
+ */
+public class ExpFactory {
+    public static final ExpFactory DEFAULT = new ExpFactory();
+
+    public Main.Exp num(double value) {
+        return new Main.Num(value);
+    }
+
+    public Main.Exp num(long value) {
+        return new Main.Num(value);
+    }
+
+    /**
+     * @return node with the value of {@code num}, integral values stay integral
+     */
+    public Main.Exp num(Main.Num num) {
+        return num.isIntegral() ? num(num.longValue()) : num(num.doubleValue());
+    }
+
+    public Main.Exp var(Main.Var var) {
+        return var;
+    }
+
+    public Main.Exp sum(Main.Exp left, Main.Exp right) {
+        return new Main.Sum(left, right);
+    }
+
+    public Main.Exp sub(Main.Exp left, Main.Exp right) {
+        return new Main.Sub(left, right);
+    }
+
+    public Main.Exp mul(Main.Exp left, Main.Exp right) {
+        return new Main.Mul(left, right);
+    }
+
+    public Main.Exp dev(Main.Exp left, Main.Exp right) {
+        return new Main.Dev(left, right);
+    }
+
+    /**
+     * @return node of the same kind as {@code exp} with the given operands
+     */
+    public Main.Exp binary(Main.BiExp exp, Main.Exp left, Main.Exp right) {
+        if (exp instanceof Main.Sum) return sum(left, right);
+        if (exp instanceof Main.Sub) return sub(left, right);
+        if (exp instanceof Main.Mul) return mul(left, right);
+        if (exp instanceof Main.Dev) return dev(left, right);
+        throw new IllegalArgumentException("Cannot create " + exp.getClass().getSimpleName());
+    }
+}
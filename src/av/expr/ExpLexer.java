@@ -0,0 +1,292 @@
+package av.expr;
+
+/**
+ * Single pass tokenizer over a {@link CharSequence}. Recognizes operators,
+ * brackets, numbers and variable names without a regex matcher,
+ * substrings or exception driven number detection. Numeric literals are parsed
+ * in place and may carry a fraction and an exponent ({@code 1.5}, {@code 2e-3}).
+ * Characters that do not start a token are skipped. Variable tokens come
+ * from a {@link Names} table, so repeated names share one token.
+ */
+class ExpLexer {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final CharSequence input;
+    private final Names names;
+    private int pos;
+    private boolean integral;
+    private long integralValue;
+
+    ExpLexer(CharSequence input) {
+        this(input, new Names());
+    }
+
+    ExpLexer(CharSequence input, Names names) {
+        this.input = input;
+        this.names = names;
+    }
+
+    static void tokenize(CharSequence input, ExpParser.TokenVisitor visitor) {
+        tokenize(input, new Names(), visitor);
+    }
+
+    static void tokenize(CharSequence input, Names names, ExpParser.TokenVisitor visitor) {
+        ExpLexer lexer = new ExpLexer(input, names);
+        ExpParser.Token token;
+        while ((token = lexer.next()) != null) {
+            token.accept(visitor);
+        }
+    }
+
+    /**
+     * @return next token or null when the input is exhausted
+     */
+    ExpParser.Token next() {
+        int length = input.length();
+        while (pos < length) {
+            char c = input.charAt(pos);
+            switch (c) {
+                case '+' : pos++; return ExpParser.PLUS;
+                case '-' : pos++; return ExpParser.MINUS;
+                case '*' : pos++; return ExpParser.MULTIPLE_SIGN;
+                case '/' : pos++; return ExpParser.DIVISION_SIGN;
+                case '(' : pos++; return ExpParser.OPEN_BRACKET;
+                case ')' : pos++; return ExpParser.CLOSE_BRACKET;
+            }
+            if (atNumber()) {
+                double value = scanNumber();
+                return integral ? new ExpParser.NumberToken(integralValue) : new ExpParser.NumberToken(value);
+            }
+            if (isIdentifierStart(c)) {
+                return scanIdentifier();
+            }
+            pos++;
+        }
+        return null;
+    }
+
+    /**
+     * @return next non whitespace character without consuming it, or -1 at the end of input
+     */
+    int peek() {
+        int length = input.length();
+        while (pos < length && Character.isWhitespace(input.charAt(pos))) {
+            pos++;
+        }
+        return pos < length ? input.charAt(pos) : -1;
+    }
+
+    void advance() {
+        pos++;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    boolean atNumber() {
+        int length = input.length();
+        if (pos >= length) return false;
+        char c = input.charAt(pos);
+        return isDigit(c) || (c == '.' && pos + 1 < length && isDigit(input.charAt(pos + 1)));
+    }
+
+    ExpParser.VarToken scanIdentifier() {
+        int start = pos++;
+        int length = input.length();
+        while (pos < length && isWordChar(input.charAt(pos))) {
+            pos++;
+        }
+        if (pos - start == 1) {
+            return ExpParser.VarToken.of(input.charAt(start));
+        }
+        return names.get(input, start, pos);
+    }
+
+    /**
+     * Scans a literal as a double. A literal without fraction and exponent
+     * that fits in a long is also available from {@link #isIntegral()} and
+     * {@link #getIntegralValue()} until the next call.
+     */
+    double scanNumber() {
+        int length = input.length();
+        int start = pos;
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        long integer = 0;
+        boolean fitsLong = true;
+
+        while (pos < length && isDigit(input.charAt(pos))) {
+            int digit = input.charAt(pos++) - '0';
+            if (integer == 0 && digit == 0) continue;
+            if (integer > (Long.MAX_VALUE - digit) / 10) {
+                fitsLong = false;
+            } else {
+                integer = integer * 10 + digit;
+            }
+            if (digits < MAX_EXACT_DIGITS) {
+                mantissa = mantissa * 10 + digit;
+                digits++;
+            } else {
+                exact = false;
+            }
+        }
+        integral = fitsLong;
+        integralValue = integer;
+        if (pos + 1 < length && input.charAt(pos) == '.' && isDigit(input.charAt(pos + 1))) {
+            integral = false;
+            pos++;
+            while (pos < length && isDigit(input.charAt(pos))) {
+                int digit = input.charAt(pos++) - '0';
+                if (mantissa == 0 && digit == 0) {
+                    exponent--;
+                } else if (digits < MAX_EXACT_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    digits++;
+                    exponent--;
+                } else {
+                    exact = false;
+                }
+            }
+        }
+        if (pos < length && (input.charAt(pos) == 'e' || input.charAt(pos) == 'E')) {
+            int mark = pos++;
+            boolean negative = false;
+            if (pos < length && (input.charAt(pos) == '+' || input.charAt(pos) == '-')) {
+                negative = input.charAt(pos++) == '-';
+            }
+            if (pos < length && isDigit(input.charAt(pos))) {
+                int exp = 0;
+                while (pos < length && isDigit(input.charAt(pos))) {
+                    if (exp < 100000) exp = exp * 10 + (input.charAt(pos) - '0');
+                    pos++;
+                }
+                exponent += negative ? -exp : exp;
+                integral = false;
+            } else {
+                // not an exponent, the 'e' is a variable
+                pos = mark;
+            }
+        }
+
+        if (exact && mantissa == 0) {
+            return 0.0;
+        }
+        if (exact && exponent >= -22 && exponent <= 22) {
+            return exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        }
+        return Double.parseDouble(input.subSequence(start, pos).toString());
+    }
+
+    boolean isIntegral() {
+        return integral;
+    }
+
+    long getIntegralValue() {
+        return integralValue;
+    }
+
+    static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Variable tokens by name, shared by the lexers of one parser so that
+     * every occurrence of a multi-character name reuses one token and one
+     * {@link Main.Var}. Names are hashed in place, without a substring. Lookups
+     * take no lock, only adding a name does, so a table can be shared by
+     * threads. At most {@value #MAX_NAMES} names are kept, further names get a
+     * new token each time.
+     */
+    static final class Names {
+        private static final int MAX_NAMES = 4096;
+
+        // open addressing with linear probing, at most half full; slots are
+        // read without a lock, which is safe as tokens only have final fields
+        private volatile ExpParser.VarToken[] table = new ExpParser.VarToken[16];
+        private int size;
+
+        ExpParser.VarToken get(CharSequence input, int start, int end) {
+            int hash = hash(input, start, end);
+            ExpParser.VarToken[] table = this.table;
+            int mask = table.length - 1;
+            for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+                if (matches(table[i].getVar(), input, start, end)) {
+                    return table[i];
+                }
+            }
+            return add(input, start, end, hash);
+        }
+
+        private synchronized ExpParser.VarToken add(CharSequence input, int start, int end, int hash) {
+            // look again, another thread may have added the name
+            ExpParser.VarToken[] table = this.table;
+            int mask = table.length - 1;
+            int i = hash & mask;
+            for (; table[i] != null; i = (i + 1) & mask) {
+                if (matches(table[i].getVar(), input, start, end)) {
+                    return table[i];
+                }
+            }
+            ExpParser.VarToken token = new ExpParser.VarToken(input.subSequence(start, end).toString());
+            if (size == MAX_NAMES) {
+                return token;
+            }
+            table[i] = token;
+            if (++size * 2 > table.length) {
+                this.table = grow(table);
+            }
+            return token;
+        }
+
+        private static ExpParser.VarToken[] grow(ExpParser.VarToken[] table) {
+            ExpParser.VarToken[] grown = new ExpParser.VarToken[table.length * 2];
+            int mask = grown.length - 1;
+            for (ExpParser.VarToken token : table) {
+                if (token != null) {
+                    String name = token.getVar();
+                    int i = hash(name, 0, name.length()) & mask;
+                    while (grown[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    grown[i] = token;
+                }
+            }
+            return grown;
+        }
+
+        private static int hash(CharSequence s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(String name, CharSequence s, int start, int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != s.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static boolean isIdentifierStart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    static boolean isWordChar(char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+}
@@ -0,0 +1,179 @@
+package av.expr;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for {@link ExpServer}. Each connection runs on its own thread
+ * and keeps up to {@code window} requests in flight, so the server sees
+ * pipelined traffic. The latency of a request is measured from the moment it
+ * is written until its reply line arrives.
+ * <p>
+ * Usage: {@code java av.expr.ExpLoadClient [host] [port] [connections] [requests per connection] [window]}
+ */
+public class ExpLoadClient {
+    private static final String[] STATEMENTS = {
+            "E x = 12",
+            "E x * 3 + 4 / 2",
+            "S (a + b) * (x - 1) / 4",
+            "E (x + 1) * (x - 1) - x * x",
+            "S y * 2 + x",
+    };
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int requests;
+    private final int window;
+
+    public ExpLoadClient(InetSocketAddress address, int connections, int requests, int window) {
+        this.address = address;
+        this.connections = connections;
+        this.requests = requests;
+        this.window = window;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ExpServer.DEFAULT_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+        int window = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+        System.out.println(new ExpLoadClient(new InetSocketAddress(host, port), connections, requests, window).run());
+    }
+
+    public Result run() throws InterruptedException {
+        final long[][] latencies = new long[connections][];
+        final AtomicLong errors = new AtomicLong();
+        final IOException[] failures = new IOException[connections];
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            final int connection = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latencies[connection] = drive(errors);
+                    } catch (IOException e) {
+                        failures[connection] = e;
+                    }
+                }
+            }, "exp-load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (IOException failure : failures) {
+            if (failure != null) {
+                throw new IllegalStateException("Connection failed", failure);
+            }
+        }
+        long[] all = new long[connections * requests];
+        for (int i = 0; i < connections; i++) {
+            System.arraycopy(latencies[i], 0, all, i * requests, requests);
+        }
+        Arrays.sort(all);
+        return new Result(all, errors.get(), elapsed);
+    }
+
+    /**
+     * @return latency of every request of one connection, in nanoseconds
+     */
+    private long[] drive(AtomicLong errors) throws IOException {
+        long[] sent = new long[requests];
+        long[] latency = new long[requests];
+        byte[][] encoded = new byte[STATEMENTS.length][];
+        for (int i = 0; i < STATEMENTS.length; i++) {
+            encoded[i] = (STATEMENTS[i] + "\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            int written = 0;
+            int received = 0;
+            boolean lineStart = true;
+            while (received < requests) {
+                while (written < requests && written - received < window && out.remaining() >= 256) {
+                    out.put(encoded[written % encoded.length]);
+                    sent[written++] = System.nanoTime();
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                out.clear();
+
+                in.clear();
+                if (channel.read(in) == -1) {
+                    throw new IOException("Server closed the connection after " + received + " replies");
+                }
+                long now = System.nanoTime();
+                for (int i = 0; i < in.position(); i++) {
+                    byte b = in.get(i);
+                    if (lineStart && b == '!') {
+                        errors.incrementAndGet();
+                    }
+                    lineStart = b == '\n';
+                    if (lineStart) {
+                        latency[received] = now - sent[received];
+                        received++;
+                    }
+                }
+            }
+        }
+        return latency;
+    }
+
+    public static class Result {
+        private final long[] sortedLatencies;
+        private final long errors;
+        private final long elapsedNanos;
+
+        Result(long[] sortedLatencies, long errors, long elapsedNanos) {
+            this.sortedLatencies = sortedLatencies;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getRequests() {
+            return sortedLatencies.length;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return latency in nanoseconds that the given fraction of requests did not exceed
+         */
+        public long percentile(double fraction) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+        }
+
+        public double requestsPerSecond() {
+            return sortedLatencies.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d time=%.3f s throughput=%.0f req/s"
+                            + " latency us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    getRequests(), errors, elapsedNanos / 1e9, requestsPerSecond(),
+                    percentile(0.5) / 1e3, percentile(0.9) / 1e3, percentile(0.99) / 1e3,
+                    percentile(0.999) / 1e3, percentile(1.0) / 1e3);
+        }
+    }
+}
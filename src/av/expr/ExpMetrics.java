@@ -0,0 +1,231 @@
+package av.expr;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of the statements resolved by an {@link ExpResolver}
+ * that has this instance set. Each stage a statement passes through gets its
+ * own {@link LatencyHistogram}; a statement served from the cache skips
+ * {@link Stage#PARSE} and {@link Stage#OPTIMIZE}. Statements slower than the
+ * Flight Recorder threshold are also reported as {@link SlowStatementEvent}.
+ * <p>
+ * A resolver without metrics does not read the clock at all. One instance may
+ * be shared by several resolvers and used from any thread.
+ */
+public class ExpMetrics implements ExpMetricsMXBean {
+    public enum Stage {
+        PARSE, OPTIMIZE, EVALUATE, PRINT
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram statements = new LatencyHistogram();
+    private final LongAdder assignments = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder strictFailures = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+
+    public ExpMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram getLatency(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     * @return latency of whole calls, from statement text to printed result
+     */
+    public LatencyHistogram getStatementLatency() {
+        return statements;
+    }
+
+    @Override
+    public long getStatementCount() {
+        return statements.getCount();
+    }
+
+    @Override
+    public long getAssignmentCount() {
+        return assignments.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return failed statements in strict mode, mostly unbound variables
+     */
+    @Override
+    public long getStrictFailureCount() {
+        return strictFailures.sum();
+    }
+
+    /**
+     * @return total size of the parsed trees of all statements
+     */
+    @Override
+    public long getNodeCount() {
+        return nodes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Nanos() {
+        return percentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Nanos() {
+        return percentiles(0.99);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxNanos() {
+        return percentiles(1.0);
+    }
+
+    private Map<String, Long> percentiles(double fraction) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Stage stage : STAGES) {
+            result.put(stage.name().toLowerCase(Locale.ROOT), stages[stage.ordinal()].percentile(fraction));
+        }
+        result.put("statement", statements.percentile(fraction));
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : stages) {
+            histogram.reset();
+        }
+        statements.reset();
+        assignments.reset();
+        failures.reset();
+        strictFailures.reset();
+        nodes.reset();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server as
+     * {@code av.expr:type=ExpMetrics,name=<name>}.
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("av.expr:type=ExpMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics " + name, e);
+        }
+    }
+
+    public void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister metrics " + objectName, e);
+        }
+    }
+
+    Sample start(String statement, boolean strict) {
+        return new Sample(statement, strict);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("statements: ").append(statements).append('\n');
+        for (Stage stage : STAGES) {
+            sb.append(stage.name().toLowerCase(Locale.ROOT)).append(": ").append(stages[stage.ordinal()]).append('\n');
+        }
+        sb.append("assignments=").append(getAssignmentCount()).append(" failures=").append(getFailureCount())
+                .append(" strict failures=").append(getStrictFailureCount()).append(" nodes=").append(getNodeCount());
+        return sb.toString();
+    }
+
+    /**
+     * Timing of one statement. The time since the previous mark is charged to
+     * the stage being marked; stages are recorded when the statement finishes.
+     * A completed statement ends at its last mark, which saves a clock read.
+     */
+    final class Sample {
+        private final String statement;
+        private final boolean strict;
+        private final SlowStatementEvent event = new SlowStatementEvent();
+        private final long start;
+        private final long[] stageNanos = new long[STAGES.length];
+        private long last;
+        private int ran;
+        private boolean assignment;
+        private int nodeCount;
+
+        private Sample(String statement, boolean strict) {
+            this.statement = statement;
+            this.strict = strict;
+            event.begin();
+            start = last = System.nanoTime();
+        }
+
+        void mark(Stage stage) {
+            long now = System.nanoTime();
+            stageNanos[stage.ordinal()] += now - last;
+            ran |= 1 << stage.ordinal();
+            last = now;
+        }
+
+        /**
+         * Starts the next stage without charging the time since the previous mark to any stage.
+         */
+        void skip() {
+            last = System.nanoTime();
+        }
+
+        void parsed(StatementCache.ParsedStatement parsed) {
+            assignment = parsed.isAssignment();
+            nodeCount = parsed.weight;
+        }
+
+        void finish(boolean completed) {
+            statements.record((completed ? last : System.nanoTime()) - start);
+            for (int i = 0; i < stageNanos.length; i++) {
+                if ((ran & 1 << i) != 0) {
+                    stages[i].record(stageNanos[i]);
+                }
+            }
+            if (assignment) {
+                assignments.increment();
+            }
+            if (!completed) {
+                failures.increment();
+                if (strict) {
+                    strictFailures.increment();
+                }
+            }
+            nodes.add(nodeCount);
+            event.end();
+            if (event.shouldCommit()) {
+                event.statement = statement;
+                event.strict = strict;
+                event.assignment = assignment;
+                event.failed = !completed;
+                event.nodes = nodeCount;
+                event.parse = stageNanos[Stage.PARSE.ordinal()];
+                event.optimize = stageNanos[Stage.OPTIMIZE.ordinal()];
+                event.evaluate = stageNanos[Stage.EVALUATE.ordinal()];
+                event.print = stageNanos[Stage.PRINT.ordinal()];
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package av.expr;
+
+import java.util.Map;
+
+/**
+ * Management view of {@link ExpMetrics}. Latency maps are keyed by stage name
+ * in lower case, plus {@code statement} for the whole call.
+ */
+public interface ExpMetricsMXBean {
+    long getStatementCount();
+
+    long getAssignmentCount();
+
+    long getFailureCount();
+
+    long getStrictFailureCount();
+
+    long getNodeCount();
+
+    Map<String, Long> getLatencyP50Nanos();
+
+    Map<String, Long> getLatencyP99Nanos();
+
+    Map<String, Long> getLatencyMaxNanos();
+
+    void reset();
+}
@@ -0,0 +1,408 @@
+package av.expr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Algebraic simplification pass that shrinks a tree before it is evaluated
+ * many times. Sums and differences are flattened into a constant plus a list
+ * of terms with numeric coefficients, products into a coefficient and a
+ * sorted list of factors. That folds constants wherever they are in a chain,
+ * combines like terms ({@code 2*x + 3*x} becomes {@code 5*x}) and drops
+ * {@code +0}, {@code *1} and {@code /1}. Division by a constant becomes part
+ * of the coefficient where it is exact for every integral value of the
+ * dividend and stays a factor otherwise. Only integral coefficients are
+ * distributed over a bracketed sum and only integral identities are dropped,
+ * so an optimized tree gives a value of the same numeric type as the
+ * original: {@code x / 2 * 2} stays a double and {@code (x + 1) / 2} stays
+ * integral where it divides evenly.
+ * <p>
+ * The pass applies the rules of real arithmetic: constants are reassociated
+ * and terms that cancel out are removed, so strict results can differ from
+ * left to right double evaluation in the last bits, and {@code x - x} is 0
+ * even where x is infinite. Terms multiplied by 0 are kept, as are cancelled
+ * terms with a division, so a NaN or infinity they produce is not lost.
+ * Constants are folded in long arithmetic with {@link Math#addExact} and
+ * {@link Math#multiplyExact} while every constant they come from is integral,
+ * and in double once one is not or a step overflows or divides unevenly.
+ * <p>
+ * Chains are flattened without recursion. A tree with sums and products or
+ * divisions nested more than {@value #RECURSION_LIMIT} levels deep is only
+ * copied, without being simplified, so deep trees are safe.
+ */
+public class ExpOptimizer {
+    private static final Comparator<Factor> FACTOR_ORDER = new Comparator<Factor>() {
+        @Override
+        public int compare(Factor o1, Factor o2) {
+            return o1.key.compareTo(o2.key);
+        }
+    };
+
+    // deeper trees are copied as they are
+    static final int RECURSION_LIMIT = DoubleEvaluator.RECURSION_LIMIT;
+
+    private final ExpFactory factory;
+    private final AtomicLong nodesEliminated = new AtomicLong();
+
+    public ExpOptimizer() {
+        this(ExpFactory.DEFAULT);
+    }
+
+    public ExpOptimizer(ExpFactory factory) {
+        this.factory = factory;
+    }
+
+    public Main.Exp optimize(Main.Exp exp) {
+        Main.Exp result = nesting(exp) < RECURSION_LIMIT ? rewrite(exp) : copy(exp);
+        nodesEliminated.addAndGet(Main.countNodes(exp) - Main.countNodes(result));
+        return result;
+    }
+
+    /**
+     * @return total number of nodes removed by this optimizer, can drop when a
+     * rewrite makes a tree larger
+     */
+    public long getNodesEliminated() {
+        return nodesEliminated.get();
+    }
+
+    private Main.Exp rewrite(Main.Exp exp) {
+        if (exp instanceof Main.Num) {
+            return factory.num((Main.Num) exp);
+        }
+        if (exp instanceof Main.Var) {
+            return factory.var((Main.Var) exp);
+        }
+        if (exp instanceof Main.Sum || exp instanceof Main.Sub || exp instanceof Main.Mul || exp instanceof Main.Dev) {
+            return build(linear(exp));
+        }
+        throw new IllegalArgumentException("Cannot optimize " + exp.getClass().getSimpleName());
+    }
+
+    /**
+     * @return how many times the rewrite recurses on the deepest path, at least:
+     * once for every sum below a product and for every division
+     */
+    private static int nesting(Main.Exp exp) {
+        int max = 0;
+        Deque<Main.Exp> pending = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        pending.push(exp);
+        depths.push(0);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            int depth = depths.pop();
+            max = Math.max(max, depth);
+            if (node instanceof Main.BiExp) {
+                Main.BiExp biExp = (Main.BiExp) node;
+                boolean multiplicative = node instanceof Main.Mul || node instanceof Main.Dev;
+                pending.push(biExp.left);
+                depths.push(depth + (node instanceof Main.Dev || multiplicative && isAdditive(biExp.left) ? 1 : 0));
+                pending.push(biExp.right);
+                depths.push(depth + (node instanceof Main.Dev || multiplicative && isAdditive(biExp.right) ? 1 : 0));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Rebuilds the tree with this optimizer's factory in postfix order, using explicit stacks.
+     */
+    private Main.Exp copy(Main.Exp exp) {
+        Deque<Main.Exp> pending = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        Deque<Main.Exp> results = new ArrayDeque<>();
+        pending.push(exp);
+        expanded.push(Boolean.FALSE);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            boolean done = expanded.pop();
+            if (node instanceof Main.BiExp && !done) {
+                pending.push(node);
+                expanded.push(Boolean.TRUE);
+                pending.push(((Main.BiExp) node).right);
+                expanded.push(Boolean.FALSE);
+                pending.push(((Main.BiExp) node).left);
+                expanded.push(Boolean.FALSE);
+            } else if (done) {
+                Main.Exp right = results.pop();
+                Main.Exp left = results.pop();
+                results.push(factory.binary((Main.BiExp) node, left, right));
+            } else if (node instanceof Main.Num) {
+                results.push(factory.num((Main.Num) node));
+            } else if (node instanceof Main.Var) {
+                results.push(factory.var((Main.Var) node));
+            } else {
+                throw new IllegalArgumentException("Cannot optimize " + node.getClass().getSimpleName());
+            }
+        }
+        return results.pop();
+    }
+
+    /**
+     * Folded value, an exact long while it is integral and a double otherwise.
+     */
+    private static final class Constant {
+        static final Constant ZERO = new Constant(0L);
+        static final Constant ONE = new Constant(1L);
+
+        final boolean integral;
+        final long exact;
+        final double value;
+
+        Constant(long exact) {
+            this.integral = true;
+            this.exact = exact;
+            this.value = exact;
+        }
+
+        Constant(double value) {
+            this.integral = false;
+            this.exact = 0;
+            this.value = value;
+        }
+
+        static Constant of(Main.Num num) {
+            return num.isIntegral() ? new Constant(num.longValue()) : new Constant(num.doubleValue());
+        }
+
+        Constant plus(Constant other) {
+            if (integral && other.integral) {
+                try {
+                    return new Constant(Math.addExact(exact, other.exact));
+                } catch (ArithmeticException overflow) {
+                    // promoted below
+                }
+            }
+            return new Constant(value + other.value);
+        }
+
+        Constant times(Constant other) {
+            if (integral && other.integral) {
+                try {
+                    return new Constant(Math.multiplyExact(exact, other.exact));
+                } catch (ArithmeticException overflow) {
+                    // promoted below
+                }
+            }
+            return new Constant(value * other.value);
+        }
+
+        Constant dividedBy(Constant other) {
+            return divisibleBy(other) ? new Constant(exact / other.exact) : new Constant(value / other.value);
+        }
+
+        /**
+         * @return true if both are integral and the quotient is an exact long
+         */
+        boolean divisibleBy(Constant other) {
+            // Long.MIN_VALUE / -1 is the one quotient that overflows
+            return integral && other.integral && other.exact != 0 && exact % other.exact == 0
+                    && (other.exact != -1 || exact != Long.MIN_VALUE);
+        }
+
+        boolean is(long identity) {
+            return integral && exact == identity;
+        }
+
+        Constant negate() {
+            return integral && exact != Long.MIN_VALUE ? new Constant(-exact) : new Constant(-value);
+        }
+    }
+
+    /**
+     * Constant plus coefficients of non constant terms, in order of first appearance.
+     */
+    private static class LinearForm {
+        Constant constant = Constant.ZERO;
+        final Map<Main.Exp, Constant> terms = new LinkedHashMap<>();
+        // terms kept even when their coefficient is 0
+        final Set<Main.Exp> kept = new HashSet<>();
+
+        void add(Main.Exp term, Constant coefficient, boolean keep) {
+            Constant previous = terms.get(term);
+            terms.put(term, previous == null ? coefficient : previous.plus(coefficient));
+            if (keep) {
+                kept.add(term);
+            }
+        }
+    }
+
+    /**
+     * Factor of a product with the printed form it is sorted by.
+     */
+    private static class Factor {
+        final Main.Exp exp;
+        final String key;
+
+        Factor(Main.Exp exp) {
+            this.exp = exp;
+            this.key = print(exp);
+        }
+    }
+
+    private static class Product {
+        Constant coefficient = Constant.ONE;
+        final List<Main.Exp> factors = new ArrayList<>();
+    }
+
+    private LinearForm linear(Main.Exp exp) {
+        LinearForm form = new LinearForm();
+        Deque<Main.Exp> pending = new ArrayDeque<>();
+        Deque<Constant> multipliers = new ArrayDeque<>();
+        pending.push(exp);
+        multipliers.push(Constant.ONE);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            Constant multiplier = multipliers.pop();
+            if (node instanceof Main.Sum || node instanceof Main.Sub) {
+                Main.BiExp biExp = (Main.BiExp) node;
+                pending.push(biExp.right);
+                multipliers.push(node instanceof Main.Sub ? multiplier.negate() : multiplier);
+                pending.push(biExp.left);
+                multipliers.push(multiplier);
+                continue;
+            }
+            Product product = product(node);
+            Constant coefficient = multiplier.times(product.coefficient);
+            if (product.factors.isEmpty()) {
+                form.constant = form.constant.plus(coefficient);
+            } else if (product.factors.size() == 1 && isAdditive(product.factors.get(0)) && coefficient.integral) {
+                // distribute the coefficient over a bracketed sum, a double one would make its terms doubles
+                pending.push(product.factors.get(0));
+                multipliers.push(coefficient);
+            } else {
+                form.add(term(product.factors), coefficient, coefficient.value == 0.0 || hasDivision(product.factors));
+            }
+        }
+        return form;
+    }
+
+    private Product product(Main.Exp exp) {
+        Product product = new Product();
+        Deque<Main.Exp> pending = new ArrayDeque<>();
+        pending.push(exp);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            if (node instanceof Main.Num) {
+                product.coefficient = product.coefficient.times(Constant.of((Main.Num) node));
+            } else if (node instanceof Main.Mul) {
+                pending.push(((Main.Mul) node).right);
+                pending.push(((Main.Mul) node).left);
+            } else if (node instanceof Main.Dev) {
+                Main.Dev dev = (Main.Dev) node;
+                Main.Exp divisor = rewrite(dev.right);
+                if (!(divisor instanceof Main.Num)) {
+                    product.factors.add(factory.dev(rewrite(dev.left), divisor));
+                    continue;
+                }
+                Constant constant = Constant.of((Main.Num) divisor);
+                Product dividend = product(dev.left);
+                if (dividend.factors.isEmpty() || dividend.coefficient.divisibleBy(constant)) {
+                    // exact for every integral value of the factors, as the interpreter would divide
+                    product.coefficient = product.coefficient.times(dividend.coefficient.dividedBy(constant));
+                    product.factors.addAll(dividend.factors);
+                } else {
+                    product.factors.add(factory.dev(expression(dividend), divisor));
+                }
+            } else {
+                Main.Exp factor = rewrite(node);
+                if (factor instanceof Main.Num) {
+                    product.coefficient = product.coefficient.times(Constant.of((Main.Num) factor));
+                } else {
+                    product.factors.add(factor);
+                }
+            }
+        }
+        return product;
+    }
+
+    private static boolean isAdditive(Main.Exp exp) {
+        return exp instanceof Main.Sum || exp instanceof Main.Sub;
+    }
+
+    private static boolean hasDivision(List<Main.Exp> factors) {
+        Deque<Main.Exp> pending = new ArrayDeque<>(factors);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            if (node instanceof Main.Dev) {
+                return true;
+            }
+            if (node instanceof Main.BiExp) {
+                pending.push(((Main.BiExp) node).left);
+                pending.push(((Main.BiExp) node).right);
+            }
+        }
+        return false;
+    }
+
+    private Main.Exp term(List<Main.Exp> factors) {
+        if (factors.size() == 1) {
+            return factors.get(0);
+        }
+        // print every factor once rather than on each comparison
+        List<Factor> sorted = new ArrayList<>(factors.size());
+        for (Main.Exp factor : factors) {
+            sorted.add(new Factor(factor));
+        }
+        Collections.sort(sorted, FACTOR_ORDER);
+        Main.Exp term = sorted.get(0).exp;
+        for (int i = 1; i < sorted.size(); i++) {
+            term = factory.mul(term, sorted.get(i).exp);
+        }
+        return term;
+    }
+
+    private Main.Exp build(LinearForm form) {
+        Main.Exp result = null;
+        for (Map.Entry<Main.Exp, Constant> entry : form.terms.entrySet()) {
+            Constant coefficient = entry.getValue();
+            Main.Exp term = entry.getKey();
+            if (coefficient.is(0) && !form.kept.contains(term)) {
+                continue;
+            }
+            if (result == null) {
+                result = coefficient.is(1) ? term : factory.mul(num(coefficient), term);
+            } else {
+                Constant magnitude = coefficient.value < 0 ? coefficient.negate() : coefficient;
+                Main.Exp scaled = magnitude.is(1) ? term : factory.mul(num(magnitude), term);
+                result = coefficient.value < 0 ? factory.sub(result, scaled) : factory.sum(result, scaled);
+            }
+        }
+        Constant constant = form.constant;
+        if (result == null) {
+            return num(constant);
+        }
+        if (constant.value < 0) {
+            return factory.sub(result, num(constant.negate()));
+        }
+        if (!constant.is(0)) {
+            return factory.sum(result, num(constant));
+        }
+        return result;
+    }
+
+    private Main.Exp expression(Product product) {
+        Main.Exp term = term(product.factors);
+        return product.coefficient.is(1) ? term : factory.mul(num(product.coefficient), term);
+    }
+
+    private Main.Exp num(Constant constant) {
+        return constant.integral ? factory.num(constant.exact) : factory.num(constant.value);
+    }
+
+    private static String print(Main.Exp exp) {
+        Main.PrettyPrinter printer = new Main.PrettyPrinter();
+        exp.accept(printer);
+        return printer.getResult();
+    }
+}
@@ -1,67 +1,37 @@
 package av.expr;
 
 import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Created by anton on 4/15/14.
  */
 public class ExpParser {
-    static Pattern EXPRESSION_PATTERN = Pattern.compile("\\d+|\\+|\\-|\\*|\\/|\\(|\\)|\\w");
-    static Pattern ASSIGNMENT_PATTERN = Pattern.compile("(\\w)\\s*=\\s*(.*)");
-
-    static Token toToken(String str) {
-        switch (str) {
-            case "+" : return new Plus();
-            case "-" : return new Minus();
-            case "*" : return new MultipleSign();
-            case "/" : return new DivisionSign();
-            case "(" : return new OpenBracket();
-            case ")" : return new CloseBracket();
-        }
-        if(isNumber(str)) {
-           return new NumberToken(str);
-        } else  {
-           return new VarToken(str);
-        }
-    }
+    static Pattern ASSIGNMENT_PATTERN = Pattern.compile("([A-Za-z_]\\w*)\\s*=\\s*(.*)");
 
-    private static boolean isNumber(String c) {
-        try {
-            Integer.parseInt(c);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
-        }
-    }
+    static final Plus PLUS = new Plus();
+    static final Minus MINUS = new Minus();
+    static final MultipleSign MULTIPLE_SIGN = new MultipleSign();
+    static final DivisionSign DIVISION_SIGN = new DivisionSign();
+    static final OpenBracket OPEN_BRACKET = new OpenBracket();
+    static final CloseBracket CLOSE_BRACKET = new CloseBracket();
+
+    // variable tokens of every statement parsed by this parser
+    private final ExpLexer.Names names = new ExpLexer.Names();
 
     Main.Exp parseExpression(String expressionStr) {
-        List<Token> infixTokens = toPostfixForm(expressionStr);
+        return parseExpression(expressionStr, ExpFactory.DEFAULT);
+    }
 
-        Token2ExpressionVisitor ast2Expression = new Token2ExpressionVisitor();
-        for (Token token : infixTokens) {
-            token.accept(ast2Expression);
-        }
-        return ast2Expression.getResult();
+    Main.Exp parseExpression(String expressionStr, ExpFactory factory) {
+        return new PrecedenceParser(expressionStr, factory, names).parse();
     }
 
     public List<Token> toPostfixForm(String expressionString) {
-        Matcher m = EXPRESSION_PATTERN.matcher(expressionString);
-
-        List<Token> tokens = new ArrayList<>();
-        while (m.find()) {
-            tokens.add(toToken(expressionString.substring(m.start(), m.end())));
-        }
-
         InfixFormParser infixFormParser = new InfixFormParser();
-        for (Token token : tokens) {
-           token.accept(infixFormParser);
-        }
-
+        ExpLexer.tokenize(expressionString, names, infixFormParser);
         return infixFormParser.getResults();
     }
 
@@ -78,15 +48,44 @@ public class ExpParser {
 
     public static class NumberToken extends Token {
         private double num;
+        private final boolean integral;
+        private final long integralValue;
 
         public NumberToken(String num) {
-            this.num = Double.parseDouble(num);
+            this(Double.parseDouble(num));
+        }
+
+        public NumberToken(double num) {
+            this.num = num;
+            this.integral = false;
+            this.integralValue = 0;
+        }
+
+        /**
+         * Integer literal, evaluated exactly while the arithmetic on it stays integral.
+         */
+        public NumberToken(long num) {
+            this.num = num;
+            this.integral = true;
+            this.integralValue = num;
         }
 
         double getNum() {
             return num;
         }
 
+        boolean isIntegral() {
+            return integral;
+        }
+
+        long getIntegralValue() {
+            return integralValue;
+        }
+
+        Main.Exp toExp(ExpFactory factory) {
+            return integral ? factory.num(integralValue) : factory.num(num);
+        }
+
         @Override
         public Main.Exp accept(TokenVisitor tokenVisitor) {
             tokenVisitor.visit(this);
@@ -147,14 +146,35 @@ public class ExpParser {
         }
     }
 
+    /**
+     * Variable tokens with single character ASCII names are interned,
+     * {@link #of(char)} returns the same instance for the same name.
+     */
     public static class VarToken extends Token {
-        private String var;
-        public VarToken(String var) {
-            this.var = var;
+        private static final VarToken[] ASCII_TOKENS = new VarToken[128];
+
+        static {
+            for (char c = 0; c < ASCII_TOKENS.length; c++) {
+                ASCII_TOKENS[c] = new VarToken(String.valueOf(c));
+            }
+        }
+
+        private final Main.Var exp;
+
+        VarToken(String var) {
+            this.exp = new Main.Var(var);
+        }
+
+        public static VarToken of(char var) {
+            return var < ASCII_TOKENS.length ? ASCII_TOKENS[var] : new VarToken(String.valueOf(var));
         }
 
         public String getVar() {
-            return var;
+            return exp.getName();
+        }
+
+        Main.Var getExp() {
+            return exp;
         }
 
         @Override
@@ -165,7 +185,7 @@ public class ExpParser {
     }
 
     public static class InfixFormParser implements TokenVisitor {
-        List<Token> results = new ArrayList<>();
+        TokenBuffer results = new TokenBuffer();
         Deque<Token> stack = new ArrayDeque<>();
 
 
@@ -184,12 +204,19 @@ public class ExpParser {
             processLowPrio(minus);
         }
 
+        private void processHighPrio(Token operator) {
+            while (!stack.isEmpty() && isHighPriorityOperator(stack.peek())) {
+                results.add(stack.pop());
+            }
+            stack.push(operator);
+        }
+
         public void visit(MultipleSign multipleSign) {
-            stack.push(multipleSign);
+            processHighPrio(multipleSign);
         }
 
         public void visit(DivisionSign divisionSign) {
-            stack.push(divisionSign);
+            processHighPrio(divisionSign);
         }
 
         public void visit(OpenBracket openBracket) {
@@ -201,6 +228,9 @@ public class ExpParser {
                 Token pop = stack.pop();
                 results.add(pop);
             }
+            if (!stack.isEmpty()) {
+                stack.pop();
+            }
         }
 
         public void visit(NumberToken numberToken) {
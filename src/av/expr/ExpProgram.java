@@ -0,0 +1,274 @@
+package av.expr;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expression encoded as a flat postfix program: an {@code int[]} opcode
+ * stream, a {@code double[]} constant pool and a table of variable slots.
+ * Each instruction keeps the opcode in the low {@value #OP_BITS} bits and the
+ * constant or slot index in the remaining bits. Evaluation is a single loop
+ * over the code with a {@code double[]} operand stack.
+ */
+public final class ExpProgram {
+    static final int OP_BITS = 3;
+    static final int OP_MASK = (1 << OP_BITS) - 1;
+
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+
+    private final int[] code;
+    private final double[] constants;
+    private final Main.Var[] slots;
+    private final int[] usedSlots;
+    private final int maxStack;
+
+    private ExpProgram(int[] code, double[] constants, Main.Var[] slots, int[] usedSlots, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.slots = slots;
+        this.usedSlots = usedSlots;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Builds a program from the output of {@link ExpParser#toPostfixForm(String)}.
+     */
+    public static ExpProgram fromPostfix(List<ExpParser.Token> postfixTokens) {
+        Builder builder = new Builder();
+        for (int i = 0; i < postfixTokens.size(); i++) {
+            postfixTokens.get(i).accept(builder);
+        }
+        return builder.build();
+    }
+
+    public static ExpProgram fromExpression(Main.Exp exp) {
+        return fromExpression(exp, null);
+    }
+
+    /**
+     * Builds a program whose variable loads address the slots of the symbol
+     * table directly, see {@link SymbolTable#bind(Main.Exp)}.
+     */
+    static ExpProgram fromExpression(Main.Exp exp, SymbolTable symbols) {
+        Builder builder = new Builder(symbols);
+        builder.append(exp);
+        return builder.build();
+    }
+
+    /**
+     * @return variables in slot order, values passed to {@link #evaluate(double[])} follow this order.
+     * For programs bound to a {@link SymbolTable} slots the program does not load are null.
+     */
+    public List<Main.Var> getSlots() {
+        return Arrays.asList(slots.clone());
+    }
+
+    /**
+     * @return distinct slots the program loads from
+     */
+    int[] getUsedSlots() {
+        return usedSlots;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int length() {
+        return code.length;
+    }
+
+    public double evaluate(double[] values) {
+        return evaluate(values, new double[maxStack]);
+    }
+
+    /**
+     * Evaluates the program using the caller's operand stack, which must hold
+     * at least {@link #getMaxStack()} elements. Allocates nothing.
+     */
+    public double evaluate(double[] values, double[] stack) {
+        int sp = 0;
+        for (int instruction : code) {
+            switch (instruction & OP_MASK) {
+                case CONST: stack[sp++] = constants[instruction >>> OP_BITS]; break;
+                case LOAD: stack[sp++] = values[instruction >>> OP_BITS]; break;
+                case ADD: sp--; stack[sp - 1] = stack[sp - 1] + stack[sp]; break;
+                case SUB: sp--; stack[sp - 1] = stack[sp - 1] - stack[sp]; break;
+                case MUL: sp--; stack[sp - 1] = stack[sp - 1] * stack[sp]; break;
+                case DIV: sp--; stack[sp - 1] = stack[sp - 1] / stack[sp]; break;
+                default: throw new IllegalStateException("Unknown opcode " + (instruction & OP_MASK));
+            }
+        }
+        return stack[0];
+    }
+
+    static class Builder implements ExpParser.TokenVisitor {
+        private int[] code = new int[16];
+        private int length;
+        private double[] constants = new double[8];
+        private final Map<Long, Integer> constantIndex = new HashMap<>();
+        private final Map<Main.Var, Integer> slotIndex = new LinkedHashMap<>();
+        private final SymbolTable symbols;
+        private int stack;
+        private int maxStack;
+
+        Builder() {
+            this(null);
+        }
+
+        Builder(SymbolTable symbols) {
+            this.symbols = symbols;
+        }
+
+        /**
+         * Appends the tree in postfix order, walked with an explicit stack so
+         * deep trees are safe.
+         */
+        void append(Main.Exp exp) {
+            Deque<Main.Exp> pending = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            pending.push(exp);
+            expanded.push(Boolean.FALSE);
+            while (!pending.isEmpty()) {
+                Main.Exp node = pending.pop();
+                boolean done = expanded.pop();
+                if (node instanceof Main.BiExp && !done) {
+                    pending.push(node);
+                    expanded.push(Boolean.TRUE);
+                    pending.push(((Main.BiExp) node).right);
+                    expanded.push(Boolean.FALSE);
+                    pending.push(((Main.BiExp) node).left);
+                    expanded.push(Boolean.FALSE);
+                } else {
+                    appendNode(node);
+                }
+            }
+        }
+
+        private void appendNode(Main.Exp exp) {
+            if (exp instanceof Main.Num) {
+                constant(((Main.Num) exp).doubleValue());
+            } else if (exp instanceof Main.Var) {
+                load((Main.Var) exp);
+            } else if (exp instanceof Main.Sum) {
+                operator(ADD);
+            } else if (exp instanceof Main.Sub) {
+                operator(SUB);
+            } else if (exp instanceof Main.Mul) {
+                operator(MUL);
+            } else if (exp instanceof Main.Dev) {
+                operator(DIV);
+            } else {
+                throw new IllegalArgumentException("Cannot encode " + exp.getClass().getSimpleName());
+            }
+        }
+
+        void constant(double value) {
+            Long key = Double.doubleToRawLongBits(value);
+            Integer index = constantIndex.get(key);
+            if (index == null) {
+                index = constantIndex.size();
+                if (index == constants.length) {
+                    constants = Arrays.copyOf(constants, index * 2);
+                }
+                constants[index] = value;
+                constantIndex.put(key, index);
+            }
+            emit(CONST | index << OP_BITS, 1);
+        }
+
+        void load(Main.Var var) {
+            Integer index = slotIndex.get(var);
+            if (index == null) {
+                index = symbols != null ? symbols.slot(var) : slotIndex.size();
+                slotIndex.put(var, index);
+            }
+            emit(LOAD | index << OP_BITS, 1);
+        }
+
+        void operator(int opcode) {
+            if (stack < 2) {
+                throw new IllegalArgumentException("Operator without two operands");
+            }
+            emit(opcode, -1);
+        }
+
+        private void emit(int instruction, int stackEffect) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = instruction;
+            stack += stackEffect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        ExpProgram build() {
+            if (stack != 1) {
+                throw new IllegalArgumentException("Program must leave exactly one value, leaves " + stack);
+            }
+            int[] usedSlots = new int[slotIndex.size()];
+            int slotCount = 0;
+            int i = 0;
+            for (int slot : slotIndex.values()) {
+                usedSlots[i++] = slot;
+                slotCount = Math.max(slotCount, slot + 1);
+            }
+            Main.Var[] slots = new Main.Var[slotCount];
+            for (Map.Entry<Main.Var, Integer> entry : slotIndex.entrySet()) {
+                slots[entry.getValue()] = entry.getKey();
+            }
+            return new ExpProgram(Arrays.copyOf(code, length), Arrays.copyOf(constants, constantIndex.size()),
+                    slots, usedSlots, maxStack);
+        }
+
+        @Override
+        public void visit(ExpParser.Plus plus) {
+            operator(ADD);
+        }
+
+        @Override
+        public void visit(ExpParser.Minus minus) {
+            operator(SUB);
+        }
+
+        @Override
+        public void visit(ExpParser.MultipleSign multipleSign) {
+            operator(MUL);
+        }
+
+        @Override
+        public void visit(ExpParser.DivisionSign divisionSign) {
+            operator(DIV);
+        }
+
+        @Override
+        public void visit(ExpParser.OpenBracket openBracket) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void visit(ExpParser.CloseBracket closeBracket) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void visit(ExpParser.NumberToken numberToken) {
+            constant(numberToken.getNum());
+        }
+
+        @Override
+        public void visit(ExpParser.VarToken varToken) {
+            load(varToken.getExp());
+        }
+    }
+}
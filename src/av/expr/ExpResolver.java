@@ -1,45 +1,426 @@
 package av.expr;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.regex.Matcher;
 
 public class ExpResolver {
+    private static final ThreadLocal<ExpWriter> WRITERS = new ThreadLocal<ExpWriter>() {
+        @Override
+        protected ExpWriter initialValue() {
+            return new ExpWriter();
+        }
+    };
 
     ExpParser expParser = new ExpParser();
+    private final StatementCache statementCache;
+    private volatile boolean compiledMode;
+    private volatile ExpFactory expFactory = ExpFactory.DEFAULT;
+    private volatile ExpOptimizer optimizer;
+    private volatile ExpMetrics metrics;
+
+    public ExpResolver() {
+        this(new StatementCache());
+    }
+
+    public ExpResolver(StatementCache statementCache) {
+        this.statementCache = statementCache;
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * In compiled mode strict evaluation runs expressions compiled to bytecode
+     * by {@link ExpCompiler} instead of interpreting the tree, wherever the
+     * compiled code gives the interpreter's exact result.
+     */
+    public void setCompiledMode(boolean compiledMode) {
+        this.compiledMode = compiledMode;
+    }
+
+    public boolean isCompiledMode() {
+        return compiledMode;
+    }
+
+    /**
+     * Sets the factory used to build parsed trees. With a {@link HashConsingFactory}
+     * equal subexpressions of all parsed statements share nodes and evaluation
+     * computes each shared node once. Statements cached before the change are
+     * parsed again.
+     */
+    public void setExpFactory(ExpFactory expFactory) {
+        this.expFactory = expFactory;
+    }
+
+    public ExpFactory getExpFactory() {
+        return expFactory;
+    }
+
+    /**
+     * Sets the pass applied to every statement once, when it is parsed and
+     * before it is cached, so repeated evaluations run the smaller tree.
+     * Statements cached before the change are parsed again.
+     * {@code null} keeps parsed trees as written. The optimizer should build
+     * nodes with the same factory as this resolver.
+     */
+    public void setOptimizer(ExpOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    public ExpOptimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * Sets where the time of each stage and the statement counters are
+     * recorded. {@code null}, the default, turns instrumentation off.
+     */
+    public void setMetrics(ExpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ExpMetrics getMetrics() {
+        return metrics;
+    }
 
     public String simplifyStatement(String statement, Map<Main.Var, Main.Exp> context) {
-        return resolveStatement(statement, context, false);
+        ExpMetrics.Sample sample = sample(statement, false);
+        return printExpression(resolveStatement(statement, context, false, sample), sample);
     }
 
     public String evaluateStatement(String statement, Map<Main.Var, Main.Exp> context) {
-        return resolveStatement(statement, context, true);
+        ExpMetrics.Sample sample = sample(statement, true);
+        return printExpression(resolveStatement(statement, context, true, sample), sample);
+    }
+
+    /**
+     * Same as {@link #simplifyStatement(String, Map)} but writes the result to
+     * the output instead of returning it as a String.
+     */
+    public void simplifyStatement(String statement, Map<Main.Var, Main.Exp> context, Appendable out) throws IOException {
+        ExpMetrics.Sample sample = sample(statement, false);
+        print(resolveStatement(statement, context, false, sample), out, sample);
+    }
+
+    public void evaluateStatement(String statement, Map<Main.Var, Main.Exp> context, Appendable out) throws IOException {
+        ExpMetrics.Sample sample = sample(statement, true);
+        print(resolveStatement(statement, context, true, sample), out, sample);
+    }
+
+    /**
+     * Writes the simplified result as ASCII bytes at the buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException if the result does not fit
+     */
+    public void simplifyStatement(String statement, Map<Main.Var, Main.Exp> context, ByteBuffer out) {
+        ExpMetrics.Sample sample = sample(statement, false);
+        print(resolveStatement(statement, context, false, sample), out, sample);
+    }
+
+    public void evaluateStatement(String statement, Map<Main.Var, Main.Exp> context, ByteBuffer out) {
+        ExpMetrics.Sample sample = sample(statement, true);
+        print(resolveStatement(statement, context, true, sample), out, sample);
+    }
+
+    /**
+     * Resolves the statement against a dependency graph. Assignments keep their
+     * definition unevaluated in the graph, so later assignments to the variables
+     * it references update its value.
+     */
+    public String simplifyStatement(String statement, DependencyGraph graph) {
+        return resolveStatement(statement, graph, false);
     }
 
-    private String resolveStatement(String statement, Map<Main.Var, Main.Exp> context, boolean strict) {
-        Matcher matcher = ExpParser.ASSIGNMENT_PATTERN.matcher(statement);
-        if (matcher.matches()) {
-            String var = matcher.group(1);
-            String expStr = matcher.group(2);
-            Main.Exp expression = resolveExpression(expStr, new HashMap<Main.Var, Main.Exp>(), strict);
-            context.put(new Main.Var(var.charAt(0)), expression);
-            return printExpression(expression);
-        } else {
-            return printExpression(resolveExpression(statement, context, strict));
+    /**
+     * Same as {@link #simplifyStatement(String, DependencyGraph)} but fails when
+     * the result still has unbound variables. An assignment is recorded in the
+     * graph even when its value cannot be resolved yet.
+     */
+    public String evaluateStatement(String statement, DependencyGraph graph) {
+        return resolveStatement(statement, graph, true);
+    }
+
+    /**
+     * Evaluates the statement in strict mode and returns the value as a number
+     * instead of a printed expression. Assignments store the value in the context.
+     */
+    public double evaluateStatementToDouble(String statement, Map<Main.Var, Main.Exp> context) {
+        ExpMetrics.Sample sample = sample(statement, true);
+        try {
+            double value = evaluateToDouble(parseStatement(statement, sample), context);
+            evaluated(sample);
+            return value;
+        } catch (RuntimeException e) {
+            failed(sample);
+            throw e;
         }
     }
 
-    private Main.Exp resolveExpression(String expressionStr, Map<Main.Var, Main.Exp> context, boolean strict) {
-        Main.Exp fullExpTree = expParser.parseExpression(expressionStr);
+    /**
+     * Evaluates the statement against a slot indexed symbol table. Variables
+     * are bound to slots the first time a statement is seen with the table,
+     * later evaluations read the values by index.
+     */
+    public double evaluateStatementToDouble(String statement, SymbolTable symbols) {
+        ExpMetrics.Sample sample = sample(statement, true);
+        try {
+            StatementCache.ParsedStatement parsed = parseStatement(statement, sample);
+            double value;
+            if (parsed.isAssignment()) {
+                value = newDoubleEvaluator(Collections.<Main.Var, Main.Exp>emptyMap()).evaluate(parsed.expression);
+                symbols.define(parsed.var, value);
+            } else {
+                value = symbols.evaluate(symbols.bind(parsed));
+            }
+            evaluated(sample);
+            return value;
+        } catch (RuntimeException e) {
+            failed(sample);
+            throw e;
+        }
+    }
 
+    private double evaluateToDouble(StatementCache.ParsedStatement parsed, Map<Main.Var, Main.Exp> context) {
+        if (parsed.isAssignment()) {
+            // the same value evaluateStatement would store, integral where the interpreter keeps it exact
+            Main.Exp value = compiledMode ? evaluateCompiled(parsed, Collections.<Main.Var, Main.Exp>emptyMap()) : null;
+            if (value == null) {
+                value = resolveExpression(parsed.expression, new HashMap<Main.Var, Main.Exp>(), true);
+            }
+            context.put(parsed.var, value);
+            return ((Main.Num) value).doubleValue();
+        }
+        return evaluateParsed(parsed, context);
+    }
+
+    /**
+     * Runs the compiled code where it gives exactly the interpreter's result:
+     * the long code when every constant and variable value is integral, the
+     * double code when none is.
+     *
+     * @return the result, or null if the interpreter has to evaluate the statement
+     */
+    private Main.Num evaluateCompiled(StatementCache.ParsedStatement parsed, Map<Main.Var, Main.Exp> context) {
+        StatementCache.Compiled compiled = parsed.compiled();
+        if (compiled == null) {
+            return null;
+        }
+        int size = compiled.slots.size();
+        Main.Num[] values = new Main.Num[size];
+        boolean integral = true;
+        boolean floating = !compiled.hasIntegralConstant;
+        for (int i = 0; i < size; i++) {
+            Main.Exp value = context.get(compiled.slots.get(i));
+            if (!(value instanceof Main.Num)) {
+                return null;
+            }
+            values[i] = (Main.Num) value;
+            integral &= values[i].isIntegral();
+            floating &= !values[i].isIntegral();
+        }
+        if (integral && compiled.longExpression != null) {
+            long[] longs = new long[size];
+            for (int i = 0; i < size; i++) {
+                longs[i] = values[i].longValue();
+            }
+            try {
+                return new Main.Num(compiled.longExpression.evaluate(longs));
+            } catch (ArithmeticException e) {
+                // the interpreter promotes to double
+                return null;
+            }
+        }
+        if (floating) {
+            double[] doubles = new double[size];
+            for (int i = 0; i < size; i++) {
+                doubles[i] = values[i].doubleValue();
+            }
+            return new Main.Num(compiled.expression.evaluate(doubles));
+        }
+        return null;
+    }
+
+    private double evaluateParsed(StatementCache.ParsedStatement parsed, Map<Main.Var, Main.Exp> context) {
+        DoubleEvaluator evaluator = newDoubleEvaluator(context);
+        StatementCache.Compiled compiled = compiledMode ? parsed.compiled() : null;
+        if (compiled == null) {
+            return evaluator.evaluate(parsed.expression);
+        }
+        double[] values = new double[compiled.slots.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluator.evaluate(compiled.slots.get(i));
+        }
+        return compiled.expression.evaluate(values);
+    }
+
+    private Main.Exp resolveStatement(String statement, Map<Main.Var, Main.Exp> context, boolean strict,
+                                      ExpMetrics.Sample sample) {
+        try {
+            StatementCache.ParsedStatement parsed = parseStatement(statement, sample);
+            Main.Exp result = strict && compiledMode
+                    ? evaluateCompiled(parsed, parsed.isAssignment() ? Collections.<Main.Var, Main.Exp>emptyMap() : context)
+                    : null;
+            if (parsed.isAssignment()) {
+                if (result == null) {
+                    result = resolveExpression(parsed.expression, new HashMap<Main.Var, Main.Exp>(), strict);
+                }
+                context.put(parsed.var, result);
+            } else if (result == null) {
+                result = resolveExpression(parsed.expression, context, strict);
+            }
+            if (sample != null) {
+                sample.mark(ExpMetrics.Stage.EVALUATE);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            failed(sample);
+            throw e;
+        }
+    }
+
+    private String resolveStatement(String statement, DependencyGraph graph, boolean strict) {
+        ExpMetrics.Sample sample = sample(statement, strict);
+        Main.Exp result;
+        try {
+            StatementCache.ParsedStatement parsed = parseStatement(statement, sample);
+            if (parsed.isAssignment()) {
+                result = graph.define(parsed.var, parsed.expression);
+            } else {
+                result = resolveExpression(parsed.expression, graph.values(), false);
+            }
+            if (strict && !(result instanceof Main.Num)) {
+                throw new IllegalArgumentException("Unbound variables in " + printExpression(result));
+            }
+            if (sample != null) {
+                sample.mark(ExpMetrics.Stage.EVALUATE);
+            }
+        } catch (RuntimeException e) {
+            failed(sample);
+            throw e;
+        }
+        return printExpression(result, sample);
+    }
+
+    StatementCache.ParsedStatement parseStatement(String statement) {
+        return parseStatement(statement, null);
+    }
+
+    private StatementCache.ParsedStatement parseStatement(String statement, ExpMetrics.Sample sample) {
+        ExpFactory factory = expFactory;
+        ExpOptimizer current = optimizer;
+        StatementCache.ParsedStatement parsed = statementCache.get(statement, factory, current);
+        if (parsed == null) {
+            Main.Var var = null;
+            String expStr = statement;
+            Matcher matcher = ExpParser.ASSIGNMENT_PATTERN.matcher(statement);
+            if (matcher.matches()) {
+                var = new Main.Var(matcher.group(1));
+                expStr = matcher.group(2);
+            }
+            Main.Exp expression = expParser.parseExpression(expStr, factory);
+            if (sample != null) {
+                sample.mark(ExpMetrics.Stage.PARSE);
+            }
+            if (current != null) {
+                expression = current.optimize(expression);
+                if (sample != null) {
+                    sample.mark(ExpMetrics.Stage.OPTIMIZE);
+                }
+            }
+            parsed = new StatementCache.ParsedStatement(var, expression);
+            statementCache.put(statement, factory, current, parsed);
+        }
+        if (sample != null) {
+            sample.parsed(parsed);
+            sample.skip();
+        }
+        return parsed;
+    }
+
+    private ExpMetrics.Sample sample(String statement, boolean strict) {
+        ExpMetrics current = metrics;
+        return current == null ? null : current.start(statement, strict);
+    }
+
+    private static void evaluated(ExpMetrics.Sample sample) {
+        if (sample != null) {
+            sample.mark(ExpMetrics.Stage.EVALUATE);
+            sample.finish(true);
+        }
+    }
+
+    private static void printed(ExpMetrics.Sample sample, boolean completed) {
+        if (sample != null) {
+            sample.mark(ExpMetrics.Stage.PRINT);
+            sample.finish(completed);
+        }
+    }
+
+    private static void failed(ExpMetrics.Sample sample) {
+        if (sample != null) {
+            sample.finish(false);
+        }
+    }
+
+    private Main.Exp resolveExpression(Main.Exp fullExpTree, Map<Main.Var, Main.Exp> context, boolean strict) {
         Main.Evaluator evaluator = new Main.Evaluator(context, strict);
+        if (expFactory instanceof HashConsingFactory) {
+            evaluator.shareSubexpressions();
+        }
         fullExpTree.accept(evaluator);
 
         return evaluator.getResult();
     }
 
+    private DoubleEvaluator newDoubleEvaluator(Map<Main.Var, Main.Exp> context) {
+        DoubleEvaluator evaluator = new DoubleEvaluator(context);
+        if (expFactory instanceof HashConsingFactory) {
+            evaluator.shareSubexpressions();
+        }
+        return evaluator;
+    }
+
+    private String printExpression(Main.Exp exp, ExpMetrics.Sample sample) {
+        boolean completed = false;
+        try {
+            String result = printExpression(exp);
+            completed = true;
+            return result;
+        } finally {
+            printed(sample, completed);
+        }
+    }
+
+    private void print(Main.Exp exp, Appendable out, ExpMetrics.Sample sample) throws IOException {
+        boolean completed = false;
+        try {
+            WRITERS.get().print(exp, out);
+            completed = true;
+        } finally {
+            printed(sample, completed);
+        }
+    }
+
+    private void print(Main.Exp exp, ByteBuffer out, ExpMetrics.Sample sample) {
+        boolean completed = false;
+        try {
+            WRITERS.get().print(exp, out);
+            completed = true;
+        } finally {
+            printed(sample, completed);
+        }
+    }
+
     private String printExpression(Main.Exp exp) {
-        Main.PrettyPrinter prettyPrinter = new Main.PrettyPrinter();
-        exp.accept(prettyPrinter);
-        return prettyPrinter.getResult();
+        StringBuilder sb = new StringBuilder();
+        try {
+            WRITERS.get().print(exp, sb);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,331 @@
+package av.expr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP front end for a shared, warmed up {@link ExpResolver}. Every connection
+ * gets its own {@link SessionManager.Session}, opened on connect and closed on
+ * disconnect.
+ * <p>
+ * Protocol, one ASCII line per request and per response, in request order:
+ * <pre>
+ * S &lt;statement&gt;   simplify        = &lt;result&gt;
+ * E &lt;statement&gt;   evaluate        ! &lt;error message&gt;
+ * </pre>
+ * Clients may pipeline any number of requests without waiting for replies.
+ * Connections are spread over a few selector threads; each connection is
+ * served by one thread, which keeps its replies in order. A connection whose
+ * client does not read its replies stops being read until they drain. A
+ * request that fails in any way is answered with {@code !}; should a
+ * connection fail outside of a request, only that connection is closed.
+ */
+public class ExpServer implements Closeable {
+    public static final int DEFAULT_PORT = 7878;
+    static final int MAX_LINE_LENGTH = 1024 * 1024;
+    // stop reading a connection while this many reply bytes are unsent
+    private static final int HIGH_WATER = 1024 * 1024;
+
+    private final SessionManager sessions;
+    private final ServerSocketChannel server;
+    private final Worker[] workers;
+    private final Thread acceptor;
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Binds to the loopback address and starts serving. Port 0 picks a free port.
+     */
+    public ExpServer(SessionManager sessions, int port, int threads) throws IOException {
+        this.sessions = sessions;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(Selector.open());
+            Thread thread = new Thread(workers[i], "exp-server-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "exp-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        ExpServer server = new ExpServer(new SessionManager(), port, threads);
+        System.err.println("Listening on " + server.getAddress() + " with " + threads + " threads");
+        server.acceptor.join();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                workers[next].register(channel);
+                next = (next + 1) % workers.length;
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = incoming.poll()) != null) {
+                        Connection connection = new Connection(channel, sessions.open("connection-" + connectionIds.incrementAndGet()));
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (IOException e) {
+                            connection.close(null);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(key, readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write(key);
+                            }
+                        } catch (IOException e) {
+                            connection.close(key);
+                        } catch (RuntimeException | StackOverflowError e) {
+                            // keep the worker serving its other connections
+                            connection.fail(key, e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Selector failed: " + e);
+                }
+            } finally {
+                SocketChannel pending;
+                while ((pending = incoming.poll()) != null) {
+                    try {
+                        pending.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close(key);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client: the unfinished request line and the unsent replies.
+     */
+    private class Connection implements Appendable {
+        private final SocketChannel channel;
+        private final SessionManager.Session session;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private boolean skipping;
+        private ByteBuffer out = ByteBuffer.allocate(8 * 1024);
+
+        Connection(SocketChannel channel, SessionManager.Session session) {
+            this.channel = channel;
+            this.session = session;
+        }
+
+        void read(SelectionKey key, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read == -1) {
+                close(key);
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    if (!skipping) {
+                        handle(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+                    }
+                    skipping = false;
+                    lineLength = 0;
+                } else if (!skipping) {
+                    if (lineLength == MAX_LINE_LENGTH) {
+                        reply('!', "Request longer than " + MAX_LINE_LENGTH + " bytes");
+                        skipping = true;
+                        continue;
+                    }
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, lineLength * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            write(key);
+        }
+
+        private void handle(String request) throws IOException {
+            requests.incrementAndGet();
+            if (request.endsWith("\r")) {
+                request = request.substring(0, request.length() - 1);
+            }
+            if (request.length() < 2 || request.charAt(1) != ' ' || (request.charAt(0) != 'S' && request.charAt(0) != 'E')) {
+                reply('!', "Expected 'S <statement>' or 'E <statement>'");
+                return;
+            }
+            int mark = out.position();
+            try {
+                append('=').append(' ');
+                if (request.charAt(0) == 'S') {
+                    session.simplifyStatement(request.substring(2), this);
+                } else {
+                    session.evaluateStatement(request.substring(2), this);
+                }
+                append('\n');
+            } catch (RuntimeException e) {
+                out.position(mark);
+                reply('!', String.valueOf(e.getMessage()));
+            } catch (StackOverflowError e) {
+                out.position(mark);
+                reply('!', "Statement is nested too deeply");
+            }
+        }
+
+        private void reply(char status, String message) throws IOException {
+            append(status).append(' ').append(message).append('\n');
+        }
+
+        void write(SelectionKey key) throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            int interest = out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+            if (out.position() < HIGH_WATER) {
+                interest |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interest);
+        }
+
+        /**
+         * Sends a last error reply, as far as the socket takes it without
+         * blocking, and closes the connection.
+         */
+        void fail(SelectionKey key, Throwable error) {
+            try {
+                reply('!', "Internal error: " + error);
+                out.flip();
+                channel.write(out);
+            } catch (IOException | RuntimeException ignored) {
+            }
+            close(key);
+        }
+
+        /**
+         * @param key selection key of the connection, null if it was never registered
+         */
+        void close(SelectionKey key) {
+            if (key != null) {
+                key.cancel();
+            }
+            sessions.close(session.getId());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            for (int i = start; i < end; i++) {
+                append(csq.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            if (!out.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(out.capacity() * 2);
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(c < 0x80 ? (byte) c : (byte) '?');
+            return this;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package av.expr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Prints expressions in the same format as {@link Main.PrettyPrinter} straight
+ * to an {@link Appendable}, such as a {@link java.io.Writer} or a
+ * {@link StringBuilder}, or as ASCII bytes into a {@link ByteBuffer}. Nothing
+ * is collected into intermediate strings: operators and names are written as
+ * they are, and integral numbers, the common case, are formatted digit by
+ * digit. Other doubles fall back to {@link Double#toString(double)}.
+ * <p>
+ * Shallow trees are written recursively, and subtrees below
+ * {@value #RECURSION_LIMIT} levels with an explicit stack, so deep trees are
+ * safe. An instance keeps its scratch space between calls and is not thread
+ * safe.
+ */
+public class ExpWriter {
+    // deeper subtrees are written without recursion
+    private static final int RECURSION_LIMIT = DoubleEvaluator.RECURSION_LIMIT;
+    // doubles in this range print without exponent, as Double.toString does
+    private static final double PLAIN_LIMIT = 1e7;
+
+    // scratch space, allocated on first use: a deep tree, a number written to a non StringBuilder target
+    private Deque<Object> work;
+    private char[] digits;
+    private Appendable appendable;
+    // set with appendable when it is a StringBuilder, which is written to directly
+    private StringBuilder builder;
+    private ByteBuffer buffer;
+
+    public void print(Main.Exp exp, Appendable out) throws IOException {
+        appendable = out;
+        builder = out instanceof StringBuilder ? (StringBuilder) out : null;
+        try {
+            write(exp);
+        } finally {
+            appendable = null;
+            builder = null;
+            if (work != null) {
+                work.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the expression as ASCII bytes at the buffer's position. Characters
+     * outside ASCII are written as {@code '?'}.
+     *
+     * @throws java.nio.BufferOverflowException if the expression does not fit,
+     * the buffer then holds a truncated expression
+     */
+    public void print(Main.Exp exp, ByteBuffer out) {
+        buffer = out;
+        try {
+            write(exp);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            buffer = null;
+            if (work != null) {
+                work.clear();
+            }
+        }
+    }
+
+    private void write(Main.Exp exp) throws IOException {
+        write(exp, 0);
+    }
+
+    private void write(Main.Exp exp, int depth) throws IOException {
+        if (exp instanceof Main.Num) {
+            write((Main.Num) exp);
+        } else if (exp instanceof Main.Var) {
+            write(((Main.Var) exp).getName());
+        } else if (depth == RECURSION_LIMIT) {
+            walk(exp);
+        } else {
+            Main.BiExp biExp = (Main.BiExp) exp;
+            boolean bracketed = exp instanceof Main.Sum || exp instanceof Main.Sub;
+            if (bracketed) {
+                write('(');
+            }
+            write(biExp.left, depth + 1);
+            write(separator(biExp));
+            write(biExp.right, depth + 1);
+            if (bracketed) {
+                write(')');
+            }
+        }
+    }
+
+    /**
+     * Writes a subtree below the recursion limit with an explicit stack.
+     */
+    private void walk(Main.Exp root) throws IOException {
+        if (work == null) {
+            work = new ArrayDeque<>();
+        }
+        work.push(root);
+        while (!work.isEmpty()) {
+            Object next = work.pop();
+            if (next instanceof String) {
+                write((String) next);
+            } else if (next instanceof Main.Num) {
+                write((Main.Num) next);
+            } else if (next instanceof Main.Var) {
+                write(((Main.Var) next).getName());
+            } else {
+                Main.BiExp exp = (Main.BiExp) next;
+                if (exp instanceof Main.Sum || exp instanceof Main.Sub) {
+                    write('(');
+                    work.push(")");
+                }
+                work.push(exp.right);
+                work.push(separator(exp));
+                work.push(exp.left);
+            }
+        }
+    }
+
+    private static String separator(Main.BiExp exp) {
+        if (exp instanceof Main.Sum) return " + ";
+        if (exp instanceof Main.Sub) return " - ";
+        if (exp instanceof Main.Mul) return " * ";
+        if (exp instanceof Main.Dev) return " / ";
+        return " = ";
+    }
+
+    private void write(Main.Num number) throws IOException {
+        if (number.isIntegral()) {
+            writeDigits(number.longValue());
+        } else {
+            double value = number.doubleValue();
+            long integral = (long) value;
+            if (integral == value && Math.abs(value) < PLAIN_LIMIT
+                    && (value != 0 || Double.doubleToRawLongBits(value) == 0)) {
+                writeDigits(integral);
+                write('.');
+                write('0');
+            } else {
+                write(Double.toString(value));
+            }
+        }
+    }
+
+    private void writeDigits(long value) throws IOException {
+        if (builder != null) {
+            builder.append(value);
+            return;
+        }
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        if (digits == null) {
+            digits = new char[20];
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start; i < digits.length; i++) {
+            write(digits[i]);
+        }
+    }
+
+    private void write(String s) throws IOException {
+        if (builder != null) {
+            builder.append(s);
+        } else if (buffer == null) {
+            appendable.append(s);
+        } else {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
+        }
+    }
+
+    private void write(char c) throws IOException {
+        if (builder != null) {
+            builder.append(c);
+        } else if (buffer == null) {
+            appendable.append(c);
+        } else {
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+}
@@ -3,6 +3,36 @@ package av.expr;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 /**
  * Created by anton on 4/15/14.
  */
@@ -14,7 +44,11 @@ public class ExpressionTest {
     }
 
     @Test
-    public void unitTest(String expressionString) {
+    public void unitTest() {
+        unitTest("(1 + 4) * 7 + 9 / 2");
+    }
+
+    private void unitTest(String expressionString) {
         SerializeTokenVisitor printer = new SerializeTokenVisitor();
         for (ExpParser.Token token : expParser.toPostfixForm(expressionString)) {
             token.accept(printer);
@@ -24,4 +58,1272 @@ public class ExpressionTest {
         Assert.assertEquals("1.04.0+7.0*9.02.0/+", result);
     }
 
+    @Test
+    public void repeatedStatementIsParsedOnce() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        context.put(new Main.Var('x'), new Main.Num(2));
+        Assert.assertEquals("6", expResolver.evaluateStatement("x*3", context));
+        context.put(new Main.Var('x'), new Main.Num(5));
+        Assert.assertEquals("15", expResolver.evaluateStatement("x*3", context));
+
+        StatementCache cache = expResolver.getStatementCache();
+        Assert.assertEquals(1, cache.missCount());
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void statementCacheEvictsLeastRecentlyUsed() {
+        StatementCache cache = new StatementCache(2, 100);
+        ExpResolver expResolver = new ExpResolver(cache);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        expResolver.evaluateStatement("1+1", context);
+        expResolver.evaluateStatement("2+2", context);
+        expResolver.evaluateStatement("1+1", context);
+        expResolver.evaluateStatement("3+3", context);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.evictionCount());
+        Assert.assertNotNull(cache.get("1+1"));
+        Assert.assertNull(cache.get("2+2"));
+    }
+
+    @Test
+    public void statementCacheRespectsWeightLimit() {
+        StatementCache cache = new StatementCache(100, 5);
+        ExpResolver expResolver = new ExpResolver(cache);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        expResolver.evaluateStatement("1+2", context);
+        expResolver.evaluateStatement("3+4", context);
+        expResolver.evaluateStatement("1+2+3+4", context);
+
+        Assert.assertEquals(3, cache.weight());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sharedCacheKeepsTreesOfEachConfigurationApart() {
+        StatementCache cache = new StatementCache();
+        ExpResolver plain = new ExpResolver(cache);
+        ExpResolver optimizing = new ExpResolver(cache);
+        optimizing.setOptimizer(new ExpOptimizer());
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        Assert.assertEquals("((1 + x) + 2)", plain.simplifyStatement("(1 + x) + 2", context));
+        Assert.assertEquals("(x + 3)", optimizing.simplifyStatement("(1 + x) + 2", context));
+        Assert.assertEquals("((1 + x) + 2)", plain.simplifyStatement("(1 + x) + 2", context));
+        plain.setOptimizer(new ExpOptimizer());
+        Assert.assertEquals("(x + 3)", plain.simplifyStatement("(1 + x) + 2", context));
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void lexerParsesDecimalsAndExponents() {
+        Assert.assertEquals("1.50.002+", postfix("1.5 + 2e-3"));
+        Assert.assertEquals("12.25x*", postfix("12.25*x"));
+        Assert.assertEquals("2.0e*", postfix("2e*"));
+
+        String[] literals = {"0", "7", "0.1", ".5", "123.456", "1e22", "2.5E+3", "0.000001234",
+                "12345678901234567890", "1.7976931348623157e308", "4.9e-324"};
+        for (String literal : literals) {
+            ExpParser.Token token = new ExpLexer(literal).next();
+            Assert.assertEquals(literal, Double.parseDouble(literal), ((ExpParser.NumberToken) token).getNum(), 0.0);
+        }
+    }
+
+    @Test
+    public void tokensAreShared() {
+        List<ExpParser.Token> first = expParser.toPostfixForm("a+b*a");
+        List<ExpParser.Token> second = expParser.toPostfixForm("a*b+a");
+        Assert.assertSame(first.get(0), second.get(0));
+        Assert.assertSame(first.get(0), first.get(2));
+        Assert.assertSame(first.get(3), second.get(2));
+        Assert.assertSame(ExpParser.PLUS, second.get(4));
+        Assert.assertEquals("ab*a+", postfix("a*b+a"));
+
+        List<ExpParser.Token> names = expParser.toPostfixForm("rate*amount + rate");
+        Assert.assertSame(names.get(0), names.get(3));
+        Assert.assertSame(names.get(0), expParser.toPostfixForm("rate").get(0));
+        Main.BiExp sum = (Main.BiExp) expParser.parseExpression("rate*amount + rate");
+        Assert.assertSame(((Main.BiExp) sum.left).left, sum.right);
+        Assert.assertSame(sum.right, ((ExpParser.VarToken) names.get(0)).getExp());
+
+        ExpLexer.Names table = new ExpLexer.Names();
+        for (int i = 0; i < 10000; i++) {
+            String name = "v" + i;
+            ExpParser.VarToken token = table.get(name, 0, name.length());
+            Assert.assertEquals(name, token.getVar());
+            Assert.assertEquals(i < 4096, token == table.get("(" + name + ")", 1, name.length() + 1));
+        }
+    }
+
+    @Test
+    public void parserHandlesPrecedenceAndAssociativity() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        Assert.assertEquals("5", expResolver.evaluateStatement("10 - 3 - 2", context));
+        Assert.assertEquals("3", expResolver.evaluateStatement("12 / 2 / 2", context));
+        Assert.assertEquals("12", expResolver.evaluateStatement("8 / 2 * 3", context));
+        Assert.assertEquals("14", expResolver.evaluateStatement("2 + 3 * 4", context));
+        Assert.assertEquals("20", expResolver.evaluateStatement("(2 + 3) * 4", context));
+        Assert.assertEquals("-6", expResolver.evaluateStatement("-2 * 3", context));
+        Assert.assertEquals("1", expResolver.evaluateStatement("4 - -(1 - 4)", context));
+    }
+
+    @Test
+    public void integerArithmeticIsExactUntilItHasToPromote() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        Assert.assertEquals("9007199254740993", expResolver.evaluateStatement("9007199254740992 + 1", context));
+        Assert.assertEquals("-3", expResolver.evaluateStatement("-9 / 3", context));
+        Assert.assertEquals("3.5", expResolver.evaluateStatement("7 / 2", context));
+        Assert.assertEquals("5.0", expResolver.evaluateStatement("2.5 * 2", context));
+        Assert.assertEquals("Infinity", expResolver.evaluateStatement("1 / 0", context));
+        Assert.assertEquals(Double.toString(Long.MAX_VALUE + 1.0),
+                expResolver.evaluateStatement("9223372036854775807 + 1", context));
+        Assert.assertEquals(Double.toString(-(double) Long.MIN_VALUE),
+                expResolver.evaluateStatement("(-9223372036854775807 - 1) / -1", context));
+        Assert.assertEquals("1.0E19", expResolver.evaluateStatement("10000000000000000000", context));
+
+        ExpLexer lexer = new ExpLexer("42 42.0 4e1");
+        Assert.assertTrue(((ExpParser.NumberToken) lexer.next()).isIntegral());
+        Assert.assertFalse(((ExpParser.NumberToken) lexer.next()).isIntegral());
+        Assert.assertFalse(((ExpParser.NumberToken) lexer.next()).isIntegral());
+        Assert.assertFalse(new Main.Num(42).equals(new Main.Num(42.0)));
+        Assert.assertEquals(new Main.Num(42), new Main.Num(42L));
+
+        ExpResolver optimizing = new ExpResolver();
+        optimizing.setOptimizer(new ExpOptimizer());
+        String[] statements = {"9007199254740993 + 2", "9007199254740993 * 3 - 1", "9223372036854775807 + 1",
+                "12 / 4", "7 / 2", "2.5 * 2", "1 / 0", "x / 2 * 2", "x * 1.0", "x + 0.0", "x / 3 * 3",
+                "(x + 1) / 2", "6 * x / 3", "x / 1", "x * 2 / 4", "0.5 * (x + 1)", "2 * (x + 1) - x", "x / 0"};
+        Map<Main.Var, Main.Exp> x = new HashMap<>();
+        x.put(new Main.Var("x"), new Main.Num(7));
+        ExpOptimizer optimizer = new ExpOptimizer();
+        for (String statement : statements) {
+            Assert.assertEquals(statement, expResolver.evaluateStatement(statement, x),
+                    optimizing.evaluateStatement(statement, x));
+            Main.Exp exp = expParser.parseExpression(statement);
+            Main.Evaluator plain = new Main.Evaluator(x, true);
+            exp.accept(plain);
+            Main.Evaluator optimized = new Main.Evaluator(x, true);
+            optimizer.optimize(exp).accept(optimized);
+            Main.Num expected = (Main.Num) plain.getResult();
+            Main.Num actual = (Main.Num) optimized.getResult();
+            Assert.assertEquals(statement, expected.isIntegral(), actual.isIntegral());
+            Assert.assertEquals(statement, expected.doubleValue(), actual.doubleValue(), 0.0);
+        }
+        Assert.assertEquals("(9007199254740993 * x + 9007199254740995)",
+                optimizing.simplifyStatement("9007199254740993 * (x + 1) + 2", context));
+    }
+
+    @Test
+    public void simplifyKeepsOperandOrder() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        Assert.assertEquals("x / 2", expResolver.simplifyStatement("x / (1 + 1)", context));
+        Assert.assertEquals("(5 - y)", expResolver.simplifyStatement("2 + 3 - y", context));
+    }
+
+    @Test
+    public void parserHandlesDeeplyNestedBrackets() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        StringBuilder open = new StringBuilder();
+        StringBuilder negated = new StringBuilder();
+        StringBuilder close = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            open.append('(');
+            negated.append(i % 2 == 0 ? "(" : "-(");
+            close.append(')');
+        }
+        Assert.assertEquals("x * 2", expResolver.simplifyStatement(open + "x" + close + " * 2", context));
+        Assert.assertEquals("3", expResolver.evaluateStatement(negated + "1 + 2" + close, context));
+        try {
+            expParser.parseExpression(open + "1");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Missing ')' at end of expression", expected.getMessage());
+        }
+        try {
+            expParser.parseExpression("(1 + 2))");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Unexpected ')' at position 7", expected.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parserRejectsUnbalancedBrackets() {
+        expParser.parseExpression("(1 + 2");
+    }
+
+    @Test
+    public void postfixFormPopsEqualPrecedence() {
+        Assert.assertEquals("8.02.0/3.0*", postfix("8/2*3"));
+        Assert.assertEquals("2.03.0*4.0+", postfix("2*(3)+4"));
+        Assert.assertEquals("10.03.0-2.0-", postfix("10-3-2"));
+    }
+
+    @Test
+    public void evaluatesToPrimitiveDouble() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+
+        Assert.assertEquals(4.0, expResolver.evaluateStatementToDouble("x = 1 + 3", context), 0.0);
+        Assert.assertEquals(2.5, expResolver.evaluateStatementToDouble("(x - 1.5) * 2 / (x - 2)", context), 0.0);
+        Assert.assertEquals(expResolver.evaluateStatement("x / 3 - 7 * x", context),
+                Double.toString(expResolver.evaluateStatementToDouble("x / 3 - 7 * x", context)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void primitiveEvaluationRejectsUnboundVariables() {
+        new ExpResolver().evaluateStatementToDouble("y + 1", new HashMap<Main.Var, Main.Exp>());
+    }
+
+    @Test
+    public void compiledExpressionMatchesInterpreter() {
+        Main.Exp exp = expParser.parseExpression("x * y + z / w - 3.5 * (x - -0.25) / 7");
+        List<Main.Var> slots = Main.freeVariables(exp);
+        CompiledExpression compiled = ExpCompiler.compile(exp, slots);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            Map<Main.Var, Main.Exp> context = new HashMap<>();
+            double[] values = new double[slots.size()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextGaussian() * 1000;
+                context.put(slots.get(slot), new Main.Num(values[slot]));
+            }
+            Assert.assertEquals(new DoubleEvaluator(context).evaluate(exp), compiled.evaluate(values), 0.0);
+        }
+    }
+
+    @Test
+    public void compiledModeMatchesInterpretedMode() {
+        ExpResolver interpreted = new ExpResolver();
+        ExpResolver compiled = new ExpResolver();
+        compiled.setCompiledMode(true);
+        Map<Main.Var, Main.Exp> interpretedContext = new HashMap<>();
+        Map<Main.Var, Main.Exp> compiledContext = new HashMap<>();
+
+        String[] statements = {"a = 3 / 7", "b = 1e-3 - 2", "a * b + a / b", "(a - b) * (a + b) / 0.1", "a / 0",
+                "c = 2 * 3", "c", "c * 2 - 1", "9007199254740993 + 0", "c * 9007199254740993 / 3", "7 / 2",
+                "c / 0", "9223372036854775807 + 1", "c * a", "a * 2"};
+        for (String statement : statements) {
+            Assert.assertEquals(statement, interpreted.evaluateStatement(statement, interpretedContext),
+                    compiled.evaluateStatement(statement, compiledContext));
+        }
+
+        StringBuilder chain = new StringBuilder("1");
+        for (int i = 0; i < 200000; i++) {
+            chain.append("+1");
+        }
+        Assert.assertEquals("6", compiled.evaluateStatement("c", compiledContext));
+        Assert.assertEquals("9007199254740993", compiled.evaluateStatement("9007199254740993 + 0", compiledContext));
+        Assert.assertEquals(7.0, compiled.evaluateStatementToDouble("d = 3 + 4", compiledContext), 0.0);
+        Assert.assertEquals("7", compiled.evaluateStatement("d", compiledContext));
+
+        Assert.assertEquals(200001.0, compiled.evaluateStatementToDouble(chain.toString(), compiledContext), 0.0);
+        Assert.assertNull(compiled.parseStatement(chain.toString()).compiled());
+    }
+
+    @Test
+    public void programMatchesTreeEvaluation() {
+        String expression = "x*y + z/w - (x - 2) * 3 / y";
+        ExpProgram program = ExpProgram.fromPostfix(expParser.toPostfixForm(expression));
+        Main.Exp exp = expParser.parseExpression(expression);
+        Assert.assertEquals(program.getSlots(), Main.freeVariables(exp));
+        Assert.assertEquals(4, program.getSlots().size());
+        Assert.assertEquals(15, program.length());
+
+        Random random = new Random(7);
+        double[] stack = new double[program.getMaxStack()];
+        for (int i = 0; i < 1000; i++) {
+            Map<Main.Var, Main.Exp> context = new HashMap<>();
+            double[] values = new double[program.getSlots().size()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextDouble() * 100 - 50;
+                context.put(program.getSlots().get(slot), new Main.Num(values[slot]));
+            }
+            double expected = new DoubleEvaluator(context).evaluate(exp);
+            Assert.assertEquals(expected, program.evaluate(values, stack), 0.0);
+            Assert.assertEquals(expected, ExpProgram.fromExpression(exp).evaluate(values), 0.0);
+        }
+    }
+
+    @Test
+    public void partialEvaluationFoldsBoundVariablesOnce() throws Exception {
+        final Main.Exp exp = expParser.parseExpression("(rate * 12 + fee) * amount + fee / 4 - amount / rate");
+        Map<Main.Var, Main.Exp> tenant = new HashMap<>();
+        tenant.put(new Main.Var("rate"), new Main.Num(2));
+        tenant.put(new Main.Var("fee"), expParser.parseExpression("rate * 3"));
+
+        final PartialEvaluator.Residual residual = new PartialEvaluator().specialize(exp, tenant);
+        Assert.assertEquals("((30 * amount + 1.5) - amount / 2)", print(residual.getExpression()));
+        Assert.assertEquals(Collections.singletonList(new Main.Var("amount")), residual.getSlots());
+
+        final Map<Main.Var, Main.Exp> context = new HashMap<>(tenant);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] workers = new Thread[4];
+        for (int t = 0; t < workers.length; t++) {
+            final int seed = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 1000; i++) {
+                        double amount = random.nextInt(10000) / 100.0;
+                        Map<Main.Var, Main.Exp> request = new HashMap<>(context);
+                        request.put(new Main.Var("amount"), new Main.Num(amount));
+                        double expected = new DoubleEvaluator(request).evaluate(exp);
+                        if (residual.evaluate(new double[]{amount}) != expected) {
+                            errors.add(amount + ": " + residual.evaluate(new double[]{amount}) + " != " + expected);
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+        PartialEvaluator optimizing = new PartialEvaluator(new ExpOptimizer());
+        Assert.assertEquals("(amount + 8)",
+                print(optimizing.specialize(expParser.parseExpression("rate + amount + fee"), tenant).getExpression()));
+        Assert.assertEquals(6.0, new PartialEvaluator().specialize(expParser.parseExpression("fee"), tenant)
+                .evaluate(new double[0]), 0.0);
+
+        Main.Exp wide = new Main.Var("x");
+        for (int i = 0; i < 15; i++) {
+            wide = new Main.Sum(wide, wide);
+        }
+        PartialEvaluator.Residual large = new PartialEvaluator().specialize(new Main.Mul(wide, new Main.Var("rate")), tenant);
+        Assert.assertEquals(Math.pow(2, 16), large.evaluate(new double[]{1}), 0.0);
+
+        StringBuilder chain = new StringBuilder("amount");
+        for (int i = 0; i < 100000; i++) {
+            chain.append(" + rate + amount");
+        }
+        Main.Exp nested = new Main.Var("amount");
+        for (int i = 0; i < 100000; i++) {
+            nested = new Main.Sub(new Main.Mul(new Main.Var("rate"), new Main.Var("amount")), new Main.Dev(nested, new Main.Var("rate")));
+        }
+        for (PartialEvaluator partial : new PartialEvaluator[]{new PartialEvaluator(), optimizing}) {
+            PartialEvaluator.Residual deep = partial.specialize(expParser.parseExpression(chain.toString()), tenant);
+            Assert.assertEquals(500003.0, deep.evaluate(new double[]{3}), 0.0);
+            Map<Main.Var, Main.Exp> values = new HashMap<>(tenant);
+            values.put(new Main.Var("amount"), new Main.Num(3.0));
+            Assert.assertEquals(new DoubleEvaluator(values).evaluate(nested),
+                    partial.specialize(nested, tenant).evaluate(new double[]{3}), 1e-9);
+        }
+        try {
+            new PartialEvaluator().specialize(expParser.parseExpression("y = rate"), tenant);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void batchEvaluationMatchesRowByRow() {
+        String[] expressions = {"x*y + z/w", "(x - 1) * (2 + 3) - (y + z) / (w * x)", "x", "2 * 4 - 1"};
+        Random random = new Random(3);
+        int rows = 2500;
+        Map<Main.Var, double[]> columns = new HashMap<>();
+        for (char name : new char[]{'x', 'y', 'z', 'w'}) {
+            double[] column = new double[rows];
+            for (int row = 0; row < rows; row++) {
+                column[row] = random.nextDouble() * 10 - 5;
+            }
+            columns.put(new Main.Var(name), column);
+        }
+
+        for (String expression : expressions) {
+            Main.Exp exp = expParser.parseExpression(expression);
+            double[] out = new double[rows];
+            BatchEvaluator.evaluate(exp, columns, out);
+            for (int row = 0; row < rows; row++) {
+                Map<Main.Var, Main.Exp> context = new HashMap<>();
+                for (Map.Entry<Main.Var, double[]> column : columns.entrySet()) {
+                    context.put(column.getKey(), new Main.Num(column.getValue()[row]));
+                }
+                Assert.assertEquals(expression, new DoubleEvaluator(context).evaluate(exp), out[row], 0.0);
+            }
+        }
+
+        StringBuilder chain = new StringBuilder("x");
+        for (int i = 0; i < 200000; i++) {
+            chain.append("+1");
+        }
+        Main.Exp deep = expParser.parseExpression(chain.toString());
+        double[] out = new double[rows];
+        BatchEvaluator.evaluate(deep, columns, out);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        context.put(new Main.Var('x'), new Main.Num(columns.get(new Main.Var('x'))[7]));
+        Assert.assertEquals(new DoubleEvaluator(context).evaluate(deep), out[7], 0.0);
+    }
+
+    @Test
+    public void parallelEvaluationMatchesSequential() {
+        Random random = new Random(11);
+        Main.Exp balanced = randomTree(random, 13);
+        StringBuilder chain = new StringBuilder("x");
+        for (int i = 0; i < 3000; i++) {
+            chain.append(i % 3 == 0 ? " * " : " + ").append(i % 7 == 0 ? "y" : Integer.toString(i % 5 + 1));
+        }
+        Main.Exp[] trees = {balanced, expParser.parseExpression(chain.toString())};
+
+        ParallelEvaluator parallel = new ParallelEvaluator(new ForkJoinPool(4), 64);
+        Map<Main.Var, Main.Exp> partial = new HashMap<>();
+        partial.put(new Main.Var('x'), new Main.Num(1.5));
+        Map<Main.Var, Main.Exp> full = new HashMap<>(partial);
+        full.put(new Main.Var('y'), new Main.Num(-0.5));
+
+        for (Main.Exp tree : trees) {
+            Assert.assertEquals(print(ParallelEvaluator.sequential(tree, full, true)), print(parallel.evaluate(tree, full)));
+            Assert.assertEquals(print(ParallelEvaluator.sequential(tree, partial, false)), print(parallel.simplify(tree, partial)));
+        }
+
+        VersionedContext versioned = new VersionedContext(full);
+        for (Main.Exp tree : trees) {
+            Assert.assertEquals(print(ParallelEvaluator.sequential(tree, full, true)), print(parallel.evaluate(tree, versioned)));
+        }
+        Assert.assertTrue(versioned.resolvedValues(true).isEmpty());
+    }
+
+    private static Main.Exp randomTree(Random random, int depth) {
+        if (depth == 0) {
+            int leaf = random.nextInt(4);
+            return leaf == 0 ? new Main.Var('x') : leaf == 1 ? new Main.Var('y') : new Main.Num(random.nextInt(9) + 1);
+        }
+        Main.Exp left = randomTree(random, depth - 1);
+        Main.Exp right = randomTree(random, depth - 1);
+        switch (random.nextInt(4)) {
+            case 0: return new Main.Sum(left, right);
+            case 1: return new Main.Sub(left, right);
+            case 2: return new Main.Mul(left, right);
+            default: return new Main.Dev(left, right);
+        }
+    }
+
+    private static String print(Main.Exp exp) {
+        Main.PrettyPrinter printer = new Main.PrettyPrinter();
+        exp.accept(printer);
+        return printer.getResult();
+    }
+
+    @Test
+    public void symbolTableEvaluatesBySlot() {
+        ExpResolver expResolver = new ExpResolver();
+        SymbolTable symbols = new SymbolTable();
+
+        Assert.assertEquals(4.0, expResolver.evaluateStatementToDouble("rate = 4", symbols), 0.0);
+        Assert.assertEquals(2.5, expResolver.evaluateStatementToDouble("amount_2 = 2.5", symbols), 0.0);
+        Assert.assertEquals(13.0, expResolver.evaluateStatementToDouble("rate * amount_2 + 3", symbols), 0.0);
+
+        symbols.set(symbols.slot("rate"), 10);
+        Assert.assertEquals(28.0, expResolver.evaluateStatementToDouble("rate * amount_2 + 3", symbols), 0.0);
+        Assert.assertEquals(2, symbols.size());
+
+        SymbolTable other = new SymbolTable();
+        other.define(new Main.Var("amount_2"), 1);
+        other.define(new Main.Var("rate"), 2);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(5.0, expResolver.evaluateStatementToDouble("rate * amount_2 + 3", other), 0.0);
+            Assert.assertEquals(28.0, expResolver.evaluateStatementToDouble("rate * amount_2 + 3", symbols), 0.0);
+        }
+
+        Map<Main.Var, Main.Exp> context = symbols.toContext();
+        Assert.assertEquals("28.0", expResolver.evaluateStatement("rate * amount_2 + 3", context));
+        Assert.assertEquals("(rate - abc)", expResolver.simplifyStatement("rate - abc", new HashMap<Main.Var, Main.Exp>()));
+
+        StringBuilder chain = new StringBuilder("rate");
+        for (int i = 0; i < 200000; i++) {
+            chain.append("+1");
+        }
+        Assert.assertEquals(200010.0, expResolver.evaluateStatementToDouble(chain.toString(), symbols), 0.0);
+        Main.Exp deep = expParser.parseExpression(chain.toString());
+        Assert.assertEquals(200010.0, ExpProgram.fromExpression(deep).evaluate(new double[]{10}), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void symbolTableRejectsUndefinedVariables() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.evaluate(symbols.bind(expParser.parseExpression("price * 2")));
+    }
+
+    @Test
+    public void dependencyGraphRecomputesOnlyAffectedDefinitions() {
+        ExpResolver expResolver = new ExpResolver();
+        DependencyGraph graph = new DependencyGraph();
+
+        Assert.assertEquals("(a + 1)", expResolver.simplifyStatement("b = a + 1", graph));
+        Assert.assertEquals("(a + 1) * 2", expResolver.simplifyStatement("c = b * 2", graph));
+        Assert.assertEquals("7", expResolver.simplifyStatement("other = 3 + 4", graph));
+        Assert.assertEquals("3", expResolver.evaluateStatement("a = 3", graph));
+        Assert.assertEquals("8", expResolver.evaluateStatement("c", graph));
+
+        long before = graph.getRecomputations();
+        Assert.assertEquals("5", expResolver.evaluateStatement("a = 5", graph));
+        Assert.assertEquals(3, graph.getRecomputations() - before);
+        Assert.assertEquals("12", expResolver.evaluateStatement("c", graph));
+        Assert.assertEquals("19", expResolver.evaluateStatement("c + other", graph));
+    }
+
+    @Test
+    public void dependencyGraphRejectsCycles() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.define(new Main.Var("a"), expParser.parseExpression("b + 1"));
+        graph.define(new Main.Var("b"), expParser.parseExpression("c * 2"));
+        try {
+            graph.define(new Main.Var("c"), expParser.parseExpression("a - 1"));
+            Assert.fail("cycle not detected");
+        } catch (IllegalArgumentException expected) {
+            Assert.assertNull(graph.getDefinition(new Main.Var("c")));
+        }
+        graph.define(new Main.Var("c"), expParser.parseExpression("2"));
+        Assert.assertEquals("5", print(graph.getValue(new Main.Var("a"))));
+    }
+
+    @Test
+    public void cyclicDefinitionsAreRejected() {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        expResolver.simplifyStatement("x = x + 1", context);
+        expResolver.simplifyStatement("a = b", context);
+        expResolver.simplifyStatement("b = a", context);
+        StringBuilder deep = new StringBuilder("d");
+        for (int i = 0; i < 1000; i++) {
+            deep.append(" + 1");
+        }
+        context.put(new Main.Var("d"), expParser.parseExpression(deep.toString()));
+
+        String[][] cycles = {{"x", "x"}, {"a * 2", "a"}, {"b", "b"}, {"d", "d"}};
+        for (String[] cycle : cycles) {
+            try {
+                expResolver.simplifyStatement(cycle[0], context);
+                Assert.fail(cycle[0]);
+            } catch (IllegalArgumentException expected) {
+                Assert.assertEquals("Cyclic definition of " + cycle[1], expected.getMessage());
+            }
+            try {
+                expResolver.evaluateStatement(cycle[0], context);
+                Assert.fail(cycle[0]);
+            } catch (IllegalArgumentException expected) {
+                Assert.assertEquals("Cyclic definition of " + cycle[1], expected.getMessage());
+            }
+            try {
+                expResolver.evaluateStatementToDouble(cycle[0], context);
+                Assert.fail(cycle[0]);
+            } catch (IllegalArgumentException expected) {
+                Assert.assertEquals("Cyclic definition of " + cycle[1], expected.getMessage());
+            }
+        }
+        expResolver.evaluateStatement("a = 2", context);
+        Assert.assertEquals("4", expResolver.evaluateStatement("b * 2", context));
+    }
+
+    @Test
+    public void variableResolutionIsMemoized() {
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        context.put(new Main.Var("a0"), new Main.Num(1));
+        for (int i = 1; i <= 60; i++) {
+            context.put(new Main.Var("a" + i), expParser.parseExpression("a" + (i - 1) + " + a" + (i - 1)));
+        }
+
+        ExpResolver expResolver = new ExpResolver();
+        Assert.assertEquals(Long.toString(1L << 60), expResolver.evaluateStatement("a60", context));
+        Assert.assertEquals(Math.pow(2, 60) * 3, expResolver.evaluateStatementToDouble("a60 * 3", context), 0.0);
+        expResolver.setCompiledMode(true);
+        Assert.assertEquals(Math.pow(2, 60), expResolver.evaluateStatementToDouble("a60", context), 0.0);
+    }
+
+    @Test
+    public void versionedContextInvalidatesResolvedValues() {
+        VersionedContext context = new VersionedContext();
+        context.put(new Main.Var("x"), new Main.Num(2));
+        context.put(new Main.Var("y"), expParser.parseExpression("x * x + z"));
+
+        ExpResolver expResolver = new ExpResolver();
+        Assert.assertEquals("(4 + z)", expResolver.simplifyStatement("y", context));
+        Assert.assertEquals(2, context.resolvedValues(false).size());
+
+        long version = context.getVersion();
+        context.put(new Main.Var("z"), new Main.Num(1));
+        Assert.assertTrue(context.getVersion() > version);
+        Assert.assertTrue(context.resolvedValues(false).isEmpty());
+        Assert.assertEquals("5", expResolver.evaluateStatement("y", context));
+        context.put(new Main.Var("x"), new Main.Num(3));
+        Assert.assertEquals("10", expResolver.evaluateStatement("y", context));
+    }
+
+    @Test
+    public void hashConsingSharesEqualSubexpressions() {
+        HashConsingFactory factory = new HashConsingFactory();
+        Main.Exp exp = expParser.parseExpression("(a*b + c) * (a*b + c) - (a*b + c) / 2", factory);
+        Main.BiExp difference = (Main.BiExp) exp;
+        Main.BiExp product = (Main.BiExp) difference.left;
+        Assert.assertSame(product.left, product.right);
+        Assert.assertSame(product.left, ((Main.BiExp) difference.right).left);
+        Assert.assertEquals(exp, expParser.parseExpression("(a*b + c) * (a*b + c) - (a*b + c) / 2"));
+        Assert.assertSame(exp, factory.canonicalize(expParser.parseExpression("(a*b+c)*(a*b+c)-(a*b+c)/2")));
+
+        ExpResolver expResolver = new ExpResolver();
+        expResolver.setExpFactory(factory);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        expResolver.evaluateStatement("a = 2", context);
+        expResolver.evaluateStatement("b = 3", context);
+        Assert.assertEquals("((6 + c) * (6 + c) - (6 + c) / 2)",
+                expResolver.simplifyStatement("(a*b + c) * (a*b + c) - (a*b + c) / 2", context));
+    }
+
+    @Test
+    public void sharedNodesAreEvaluatedOnce() {
+        HashConsingFactory factory = new HashConsingFactory();
+        Main.Exp exp = factory.var(new Main.Var("x"));
+        for (int i = 0; i < 60; i++) {
+            exp = factory.sum(exp, exp);
+        }
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        context.put(new Main.Var("x"), new Main.Num(1));
+
+        Assert.assertEquals(Math.pow(2, 60), new DoubleEvaluator(context).shareSubexpressions().evaluate(exp), 0.0);
+        Main.Evaluator evaluator = new Main.Evaluator(context, true).shareSubexpressions();
+        exp.accept(evaluator);
+        Assert.assertEquals("1152921504606846976", print(evaluator.getResult()));
+    }
+
+    @Test
+    public void optimizerCombinesLikeTermsAndFoldsConstants() {
+        ExpOptimizer optimizer = new ExpOptimizer();
+        Assert.assertEquals("5 * x", print(optimizer.optimize(expParser.parseExpression("2*x + 3*x + 0"))));
+        Assert.assertEquals("(x + 3)", print(optimizer.optimize(expParser.parseExpression("(1 + x) + 2"))));
+        Assert.assertEquals("x * y", print(optimizer.optimize(expParser.parseExpression("1 * (y * x) / 1"))));
+        Main.Exp zeroTerms = optimizer.optimize(expParser.parseExpression("x*y/y*0 + 4*x/2 - y + 0*z"));
+        Assert.assertEquals("(((0 * x * y / y + 2 * x) - y) + 0 * z)", print(zeroTerms));
+        Map<Main.Var, Main.Exp> zero = new HashMap<>();
+        zero.put(new Main.Var('x'), new Main.Num(1));
+        zero.put(new Main.Var('y'), new Main.Num(0));
+        zero.put(new Main.Var('z'), new Main.Num(1));
+        Assert.assertTrue(Double.isNaN(new DoubleEvaluator(zero).evaluate(zeroTerms)));
+        zero.put(new Main.Var('y'), new Main.Num(1));
+        zero.put(new Main.Var('z'), new Main.Num(Double.POSITIVE_INFINITY));
+        Assert.assertTrue(Double.isNaN(new DoubleEvaluator(zero).evaluate(zeroTerms)));
+        Assert.assertEquals("0 * x / y", print(optimizer.optimize(expParser.parseExpression("x/y - x/y"))));
+        Assert.assertEquals("0", print(optimizer.optimize(expParser.parseExpression("a*b - b*a"))));
+        Assert.assertEquals("(2 * x + 2)", print(optimizer.optimize(expParser.parseExpression("2 * (x + 1)"))));
+        Assert.assertTrue(optimizer.getNodesEliminated() > 0);
+
+        Random random = new Random(14);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        for (char c = 'a'; c <= 'z'; c++) {
+            context.put(new Main.Var(c), new Main.Num(random.nextInt(9) + 1));
+        }
+        for (int i = 0; i < 200; i++) {
+            Main.Exp exp = randomTree(random, 5);
+            double expected = new DoubleEvaluator(context).evaluate(exp);
+            if (Double.isInfinite(expected) || Double.isNaN(expected)) {
+                continue;
+            }
+            double actual = new DoubleEvaluator(context).evaluate(optimizer.optimize(exp));
+            Assert.assertEquals(expected, actual, Math.abs(expected) * 1e-9);
+        }
+    }
+
+    @Test
+    public void resolverOptimizesStatementsBeforeCaching() {
+        ExpResolver expResolver = new ExpResolver();
+        ExpOptimizer optimizer = new ExpOptimizer();
+        expResolver.setOptimizer(optimizer);
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        Assert.assertEquals("(3 * x + 1)", expResolver.simplifyStatement("x + 1 + x * 2 + 0", context));
+        long eliminated = optimizer.getNodesEliminated();
+        Assert.assertEquals(4, eliminated);
+        expResolver.evaluateStatement("x = 2", context);
+        Assert.assertEquals("7", expResolver.evaluateStatement("x + 1 + x * 2 + 0", context));
+        Assert.assertEquals(eliminated, optimizer.getNodesEliminated());
+    }
+
+    @Test
+    public void deepTreesDoNotOverflowTheStack() {
+        int terms = 200000;
+        StringBuilder statement = new StringBuilder("a");
+        for (int i = 1; i < terms; i++) {
+            statement.append(i % 2 == 0 ? " + a" : " - b");
+        }
+        Main.Exp exp = expParser.parseExpression(statement.toString());
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        context.put(new Main.Var("a"), new Main.Num(3));
+
+        Main.Evaluator simplifier = new Main.Evaluator(context, false);
+        exp.accept(simplifier);
+        String simplified = print(simplifier.getResult());
+        Assert.assertTrue(simplified.startsWith("(((((((((("));
+        Assert.assertTrue(simplified.endsWith(" - b)"));
+
+        context.put(new Main.Var("b"), new Main.Num(1));
+        Main.Evaluator evaluator = new Main.Evaluator(context, true);
+        exp.accept(evaluator);
+        Assert.assertEquals("200000", print(evaluator.getResult()));
+        Assert.assertEquals(200000.0, new DoubleEvaluator(context).evaluate(exp), 0.0);
+        Assert.assertEquals(statement.length() + 2 * (terms - 1), print(exp).length());
+
+        final StringBuilder order = new StringBuilder();
+        exp.traverse(new Main.ExpVisitor() {
+            public Main.Exp visit(Main.Num num) { return null; }
+            public Main.Exp visit(Main.Sum sum) { order.append('+'); return null; }
+            public Main.Exp visit(Main.Sub sub) { order.append('-'); return null; }
+            public Main.Exp visit(Main.Mul mul) { return null; }
+            public Main.Exp visit(Main.Dev dev) { return null; }
+            public Main.Exp visit(Main.Var var) { order.append(var.getName()); return null; }
+            public void visit(Main.Assign assign) { }
+        });
+        Assert.assertEquals(statement.toString().replace(" ", ""), order.toString());
+        int nodes = 0;
+        for (Iterator<Main.Exp> it = exp.iterator(); it.hasNext(); it.next()) {
+            nodes++;
+        }
+        Assert.assertEquals(2 * terms - 1, nodes);
+
+        Map<Main.Var, Main.Exp> chain = new HashMap<>();
+        chain.put(new Main.Var("v0"), new Main.Num(1));
+        for (int i = 1; i < 20000; i++) {
+            chain.put(new Main.Var("v" + i), new Main.Sum(new Main.Var("v" + (i - 1)), new Main.Num(1)));
+        }
+        Main.Var last = new Main.Var("v19999");
+        Assert.assertEquals(20000.0, new DoubleEvaluator(chain).evaluate(last), 0.0);
+        Main.Evaluator chainEvaluator = new Main.Evaluator(chain, true);
+        last.accept(chainEvaluator);
+        Assert.assertEquals("20000", print(chainEvaluator.getResult()));
+
+        ExpOptimizer optimizer = new ExpOptimizer();
+        Assert.assertEquals(200000.0, new DoubleEvaluator(context).evaluate(optimizer.optimize(exp)), 0.0);
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            nested.append('(');
+        }
+        nested.append('a');
+        for (int i = 0; i < 20000; i++) {
+            nested.append(") * 1 + 0");
+        }
+        Main.Exp deep = expParser.parseExpression(nested.toString());
+        Assert.assertEquals(Main.countNodes(deep), Main.countNodes(optimizer.optimize(deep)));
+        Assert.assertEquals(3.0, new DoubleEvaluator(context).evaluate(optimizer.optimize(deep)), 0.0);
+    }
+
+    @Test
+    public void writerStreamsTheSameTextAsPrettyPrinting() throws Exception {
+        double[] values = {0, -0.0, 1, -1, 42, 0.1, 1.5e-3, 9999999, 1e7, -1e7, 1e21, Double.NaN, Double.NEGATIVE_INFINITY};
+        ExpWriter writer = new ExpWriter();
+        for (double value : values) {
+            StringBuilder sb = new StringBuilder();
+            writer.print(new Main.Num(value), sb);
+            Assert.assertEquals(Double.toString(value), sb.toString());
+        }
+        StringBuilder integral = new StringBuilder();
+        writer.print(new Main.Sum(new Main.Num(18), new Main.Num(Long.MIN_VALUE)), integral);
+        Assert.assertEquals("(18 + " + Long.MIN_VALUE + ")", integral.toString());
+
+        Main.Exp exp = expParser.parseExpression("(a + 2) * b - c / 4.5");
+        StringWriter out = new StringWriter();
+        writer.print(exp, out);
+        Assert.assertEquals("((a + 2) * b - c / 4.5)", out.toString());
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        writer.print(exp, buffer);
+        Assert.assertEquals(out.toString(), new String(buffer.array(), 0, buffer.position(), "US-ASCII"));
+
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        expResolver.evaluateStatement("a = 3", context);
+        StringWriter streamed = new StringWriter();
+        expResolver.simplifyStatement("(a + 2) * b - c / 4.5", context, streamed);
+        Assert.assertEquals(expResolver.simplifyStatement("(a + 2) * b - c / 4.5", context), streamed.toString());
+        buffer.clear();
+        expResolver.evaluateStatement("a * 2", context, buffer);
+        Assert.assertEquals("6", new String(buffer.array(), 0, buffer.position(), "US-ASCII"));
+    }
+
+    @Test
+    public void sessionsAreIsolatedAndShareParsedStatements() throws Exception {
+        final SessionManager sessions = new SessionManager();
+        final int threads = 8;
+        final int rounds = 2000;
+        final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        final SessionManager.Session common = sessions.open("common");
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SessionManager.Session session = sessions.open("user" + id);
+                    try {
+                        session.evaluateStatement("y = 1");
+                        for (int i = 0; i < rounds; i++) {
+                            session.evaluateStatement("x = " + id);
+                            String value = session.evaluateStatement("x * 2 + y");
+                            if (!String.valueOf(2 * id + 1).equals(value)) {
+                                errors.add("user" + id + ": " + value);
+                            }
+                            common.simplifyStatement("z" + id + " = " + i);
+                        }
+                    } catch (RuntimeException e) {
+                        errors.add("user" + id + ": " + e);
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(threads + 1, sessions.size());
+        Assert.assertEquals(threads, common.snapshot().size());
+        Assert.assertEquals(new Main.Num(3), sessions.get("user3").snapshot().get(new Main.Var("x")));
+        Assert.assertTrue(sessions.getExpResolver().getStatementCache().hitCount() > threads * rounds);
+        Assert.assertSame(sessions.get("user1"), sessions.close("user1"));
+        Assert.assertNull(sessions.get("user1"));
+    }
+
+    @Test
+    public void batchRunnerStreamsResultsAndReportsErrors() throws Exception {
+        Path dir = Files.createTempDirectory("batch");
+        Path input = dir.resolve("in.txt");
+        Path output = dir.resolve("out.txt");
+        StringBuilder text = new StringBuilder("x = 2\r\n\n2 * x + 1\n(1 +\n");
+        for (int i = 0; i < 50000; i++) {
+            text.append("x * ").append(i).append('\n');
+        }
+        text.append("y / x");
+        Files.write(input, text.toString().getBytes("US-ASCII"));
+
+        StringBuilder errors = new StringBuilder();
+        BatchRunner.Stats stats = new BatchRunner(new ExpResolver(), true).run(input, output, errors);
+        List<String> lines = Files.readAllLines(output, StandardCharsets.US_ASCII);
+        Assert.assertEquals(50005, lines.size());
+        Assert.assertEquals("2", lines.get(0));
+        Assert.assertEquals("", lines.get(1));
+        Assert.assertEquals("5", lines.get(2));
+        Assert.assertEquals("error: Unexpected end of expression", lines.get(3));
+        Assert.assertEquals("99998", lines.get(50003));
+        Assert.assertTrue(lines.get(50004).startsWith("error: "));
+        Assert.assertTrue(errors.toString(), errors.toString().startsWith("line 4: Unexpected end of expression"));
+        Assert.assertTrue(errors.toString().contains("line 50005: "));
+        Assert.assertEquals(50005, stats.getLines());
+        Assert.assertEquals(50002, stats.getStatements());
+        Assert.assertEquals(2, stats.getErrors());
+        Assert.assertEquals(text.length(), stats.getBytesRead());
+        Assert.assertEquals(Files.size(output), stats.getBytesWritten());
+    }
+
+    @Test
+    public void serverAnswersPipelinedRequestsPerConnection() throws Exception {
+        SessionManager sessions = new SessionManager();
+        try (ExpServer server = new ExpServer(sessions, 0, 2)) {
+            InetSocketAddress address = server.getAddress();
+            try (SocketChannel first = SocketChannel.open(address);
+                 SocketChannel second = SocketChannel.open(address)) {
+                first.write(ByteBuffer.wrap("E x = 1\nE x + 1\nS y * 2\nE y\nx\n".getBytes("US-ASCII")));
+                second.write(ByteBuffer.wrap("S x + 1\n".getBytes("US-ASCII")));
+                String[] replies = readReplies(first, 5).split("\n");
+                Assert.assertEquals("= 1", replies[0]);
+                Assert.assertEquals("= 2", replies[1]);
+                Assert.assertEquals("= y * 2", replies[2]);
+                Assert.assertTrue(replies[3].startsWith("! "));
+                Assert.assertEquals("! Expected 'S <statement>' or 'E <statement>'", replies[4]);
+                Assert.assertEquals("= (x + 1)\n", readReplies(second, 1));
+
+                StringBuilder nested = new StringBuilder("E ");
+                for (int i = 0; i < 50000; i++) {
+                    nested.append('(');
+                }
+                nested.append('7');
+                for (int i = 0; i < 50000; i++) {
+                    nested.append(')');
+                }
+                second.write(ByteBuffer.wrap((nested + "\nE 7 / 0 + )\nE 7 * 3\n").getBytes("US-ASCII")));
+                replies = readReplies(second, 3).split("\n");
+                Assert.assertEquals("= 7", replies[0]);
+                Assert.assertTrue(replies[1].startsWith("! "));
+                Assert.assertEquals("= 21", replies[2]);
+            }
+
+            ExpLoadClient.Result result = new ExpLoadClient(address, 3, 3000, 16).run();
+            Assert.assertEquals(9000, result.getRequests());
+            Assert.assertEquals(0, result.getErrors());
+            Assert.assertTrue(result.percentile(0.5) <= result.percentile(0.99));
+            Assert.assertEquals(9009, server.getRequestCount());
+        }
+    }
+
+    private static String readReplies(SocketChannel channel, int lines) throws Exception {
+        StringBuilder replies = new StringBuilder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int seen = 0;
+        while (seen < lines) {
+            buffer.clear();
+            if (channel.read(buffer) == -1) break;
+            for (int i = 0; i < buffer.position(); i++) {
+                replies.append((char) buffer.get(i));
+                if (buffer.get(i) == '\n') seen++;
+            }
+        }
+        return replies.toString();
+    }
+
+    @Test
+    public void histogramPercentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            histogram.record(v * 1000);
+        }
+        Assert.assertEquals(100000, histogram.getCount());
+        Assert.assertEquals(100000000L, histogram.getMaxNanos());
+        Assert.assertEquals(50000500.0, histogram.getMeanNanos(), 1e-6);
+        for (double fraction : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            double expected = fraction * 100000 * 1000;
+            long actual = histogram.percentile(fraction);
+            Assert.assertTrue(fraction + ": " + actual, actual >= expected && actual <= expected * 1.04);
+        }
+        Assert.assertEquals(histogram.getMaxNanos(), histogram.percentile(1.0));
+        for (long v : new long[]{0, 31, 32, 33, 1000, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(v);
+            Assert.assertTrue(v + " in bucket " + bucket, LatencyHistogram.highestValue(bucket) >= v);
+            Assert.assertTrue(bucket == 0 || LatencyHistogram.highestValue(bucket - 1) < v);
+        }
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void metricsRecordStagesAndCountersPerStatement() throws Exception {
+        ExpResolver expResolver = new ExpResolver();
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        Assert.assertNull(expResolver.getMetrics());
+        expResolver.evaluateStatement("x = 2", context);
+
+        ExpMetrics metrics = new ExpMetrics();
+        expResolver.setMetrics(metrics);
+        expResolver.setOptimizer(new ExpOptimizer());
+        Assert.assertEquals("6", expResolver.evaluateStatement("x * 3", context));
+        Assert.assertEquals("6", expResolver.evaluateStatement("x * 3", context));
+        Assert.assertEquals("(y + 1)", expResolver.simplifyStatement("1 + y", context));
+        Assert.assertEquals(4.0, expResolver.evaluateStatementToDouble("x = 4", context), 0);
+        try {
+            expResolver.evaluateStatement("y * 2", context);
+            Assert.fail();
+        } catch (RuntimeException expected) {
+        }
+
+        Assert.assertEquals(5, metrics.getStatementCount());
+        Assert.assertEquals(1, metrics.getAssignmentCount());
+        Assert.assertEquals(1, metrics.getFailureCount());
+        Assert.assertEquals(1, metrics.getStrictFailureCount());
+        // the second x * 3 comes from the cache
+        Assert.assertEquals(4, metrics.getLatency(ExpMetrics.Stage.PARSE).getCount());
+        Assert.assertEquals(4, metrics.getLatency(ExpMetrics.Stage.OPTIMIZE).getCount());
+        Assert.assertEquals(4, metrics.getLatency(ExpMetrics.Stage.EVALUATE).getCount());
+        Assert.assertEquals(3, metrics.getLatency(ExpMetrics.Stage.PRINT).getCount());
+        Assert.assertEquals(3 + 3 + 3 + 1 + 3, metrics.getNodeCount());
+        Assert.assertTrue(metrics.getStatementLatency().getTotalNanos()
+                >= metrics.getLatency(ExpMetrics.Stage.PARSE).getTotalNanos());
+
+        ObjectName name = metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(5L, server.getAttribute(name, "StatementCount"));
+            Assert.assertEquals(5, ((TabularData) server.getAttribute(name, "LatencyP99Nanos")).size());
+            server.invoke(name, "reset", null, null);
+            Assert.assertEquals(0, metrics.getStatementCount());
+        } finally {
+            metrics.unregister(name);
+        }
+
+        expResolver.setMetrics(null);
+        expResolver.evaluateStatement("x * 3", context);
+        Assert.assertEquals(0, metrics.getStatementCount());
+    }
+
+    @Test
+    public void slowStatementsAreRecordedAsFlightRecorderEvents() throws Exception {
+        ExpResolver expResolver = new ExpResolver();
+        expResolver.setMetrics(new ExpMetrics());
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        Path file = Files.createTempFile("statements", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(SlowStatementEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+            expResolver.evaluateStatement("a = 5", context);
+            expResolver.simplifyStatement("a * b", context);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Assert.assertEquals(2, events.size());
+            Assert.assertEquals("a = 5", events.get(0).getString("statement"));
+            Assert.assertTrue(events.get(0).getBoolean("assignment"));
+            Assert.assertTrue(events.get(0).getBoolean("strict"));
+            Assert.assertEquals("a * b", events.get(1).getString("statement"));
+            Assert.assertEquals(3, events.get(1).getInt("nodes"));
+            Assert.assertTrue(events.get(1).getLong("parse") > 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void encodedExpressionsAndTokensRoundTrip() throws Exception {
+        String[] statements = {"x * 3 + 4 / 2", "(a - b) * (a + b) / 0.1", "0.5 - 1e300 * 2.5e-7", "long_name / x - 12345678"};
+        ExpEncoder encoder = new ExpEncoder();
+        for (String statement : statements) {
+            encoder.add(expParser.parseExpression(statement));
+            encoder.add(expParser.toPostfixForm(statement));
+        }
+        Main.Exp assign = new Main.Assign(new Main.Var("y"),
+                new Main.Mul(new Main.Num(10), new Main.Sum(new Main.Var('x'), new Main.Num(-0.0))));
+        encoder.add(assign);
+        Main.Exp deep = new Main.Var('x');
+        for (int i = 0; i < 100000; i++) {
+            deep = new Main.Sum(deep, new Main.Num(i % 7));
+        }
+        encoder.add(deep);
+        Assert.assertEquals(2 * statements.length + 2, encoder.size());
+
+        Path file = Files.createTempFile("expressions", ".bin");
+        try {
+            encoder.write(file);
+            for (ExpDecoder decoder : new ExpDecoder[]{new ExpDecoder(encoder.encode()), ExpDecoder.map(file)}) {
+                for (int i = 0; i < statements.length; i++) {
+                    Main.Exp parsed = expParser.parseExpression(statements[i]);
+                    Assert.assertEquals(parsed, decoder.expression(2 * i));
+                    Assert.assertEquals(parsed, decoder.expression(2 * i + 1));
+                    Assert.assertEquals(postfix(statements[i]), serialize(decoder.tokens(2 * i + 1)));
+                    Assert.assertEquals(parsed, decoder.expression(2 * i, new HashConsingFactory()));
+                }
+                Main.Exp decoded = decoder.expression(2 * statements.length);
+                Assert.assertEquals(assign, decoded);
+                Assert.assertEquals("10 * (x + -0.0)", print(((Main.Assign) decoded).right));
+                Assert.assertEquals(deep, decoder.expression(2 * statements.length + 1));
+            }
+        } finally {
+            Files.delete(file);
+        }
+        // the pools hold each constant and name once
+        ExpEncoder repeated = new ExpEncoder();
+        repeated.add(expParser.parseExpression("rate * 1.5 + rate"));
+        int single = repeated.encode().remaining();
+        repeated.add(expParser.parseExpression("rate * 1.5 + rate"));
+        Assert.assertEquals(single + 4 + 5, repeated.encode().remaining());
+    }
+
+    @Test
+    public void decoderRejectsForeignAndUnsupportedData() {
+        ExpEncoder encoder = new ExpEncoder();
+        encoder.add(expParser.toPostfixForm("(1 + 2)"));
+        ByteBuffer encoded = encoder.encode();
+        try {
+            new ExpDecoder(ByteBuffer.wrap("1 + 2\n".getBytes()));
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        encoded.put(4, (byte) (ExpEncoder.VERSION + 1));
+        try {
+            new ExpDecoder(encoded);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Unsupported format version " + (ExpEncoder.VERSION + 1), e.getMessage());
+        }
+        encoded.put(4, (byte) ExpEncoder.VERSION);
+        ExpDecoder decoder = new ExpDecoder(encoded);
+        Assert.assertEquals(1, decoder.size());
+        Assert.assertEquals("1.02.0+", serialize(decoder.tokens(0)));
+
+        // truncated or corrupted files fail with IllegalArgumentException only
+        encoder.add(expParser.parseExpression("rate * 1.5 + 9007199254740993 - total / 4"));
+        encoder.add(expParser.toPostfixForm("(a + b) * 2.5"));
+        byte[] valid = new byte[encoder.encode().remaining()];
+        encoder.encode().get(valid);
+        Random random = new Random(5);
+        for (int trial = 0; trial < 20000; trial++) {
+            byte[] bytes = Arrays.copyOf(valid, trial < valid.length ? trial : valid.length);
+            if (trial >= valid.length) {
+                bytes[4 + random.nextInt(bytes.length - 4)] = (byte) random.nextInt(256);
+            }
+            try {
+                ExpDecoder corrupt = new ExpDecoder(ByteBuffer.wrap(bytes));
+                for (int i = 0; i < corrupt.size(); i++) {
+                    try {
+                        corrupt.expression(i);
+                    } catch (IllegalArgumentException expected) {
+                    }
+                    try {
+                        corrupt.tokens(i);
+                    } catch (IllegalArgumentException expected) {
+                    }
+                }
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void durableContextRecoversFromSnapshotAndJournalTail() throws Exception {
+        Path directory = Files.createTempDirectory("context");
+        try {
+            ExpResolver expResolver = new ExpResolver();
+            Map<Main.Var, Main.Exp> expected = new HashMap<>();
+            try (DurableContext context = new DurableContext(directory, 0, 5)) {
+                for (int i = 0; i < 12; i++) {
+                    expResolver.simplifyStatement("v" + i + " = " + i + " * w + 1", context);
+                }
+                context.remove(new Main.Var("v3"));
+                context.remove(new Main.Var("missing"));
+                Assert.assertEquals(3, context.getJournaledSinceSnapshot());
+                Assert.assertEquals(13, context.getSyncCount());
+                expected.putAll(context);
+            }
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("journal-2.log", "snapshot-2.bin")),
+                    fileNames(directory));
+
+            Path journal = directory.resolve("journal-2.log");
+            long intact = Files.size(journal);
+            Files.write(journal, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+            try (DurableContext context = new DurableContext(directory)) {
+                Assert.assertEquals(expected, new HashMap<>(context));
+                Assert.assertEquals(intact, Files.size(journal));
+                Assert.assertEquals("82", expResolver.evaluateStatement("v8 + v2", withW(context)));
+                context.clear();
+                context.put(new Main.Var('z'), new Main.Num(7));
+            }
+            try (DurableContext context = new DurableContext(directory)) {
+                Assert.assertEquals(1, context.size());
+                Assert.assertEquals(new Main.Num(7), context.get(new Main.Var('z')));
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void journalClosesWhileTheFlusherSyncs() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            for (int round = 0; round < 20; round++) {
+                try (DurableContext context = new DurableContext(directory, 1, 1000000)) {
+                    Assert.assertEquals(round == 0 ? 0 : 2000, context.size());
+                    for (int i = 0; i < 2000; i++) {
+                        context.put(new Main.Var("v" + i), new Main.Num(round));
+                    }
+                }
+                try (DurableContext context = new DurableContext(directory)) {
+                    Assert.assertEquals(2000, context.size());
+                    Assert.assertEquals(new Main.Num(round), context.get(new Main.Var("v1999")));
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void journalGroupsConcurrentAndBatchedSyncs() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            final ContextJournal journal = new ContextJournal(directory, 0);
+            Assert.assertTrue(journal.recover().isEmpty());
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int thread = t;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 100; i++) {
+                                journal.sync(journal.put(new Main.Var("t" + thread + "_" + i), new Main.Num(i)));
+                            }
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(Collections.emptyList(), failures);
+            Assert.assertTrue(journal.getSyncCount() <= 800);
+            journal.close();
+
+            try (DurableContext context = new DurableContext(directory, 50, DurableContext.DEFAULT_SNAPSHOT_EVERY)) {
+                Assert.assertEquals(800, context.size());
+                Assert.assertEquals(new Main.Num(99), context.get(new Main.Var("t7_99")));
+                for (int i = 0; i < 1000; i++) {
+                    context.put(new Main.Var("batched"), new Main.Num(i));
+                }
+                context.flush();
+                Assert.assertTrue(String.valueOf(context.getSyncCount()), context.getSyncCount() < 100);
+            }
+            try (DurableContext context = new DurableContext(directory)) {
+                Assert.assertEquals(new Main.Num(999), context.get(new Main.Var("batched")));
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static Map<Main.Var, Main.Exp> withW(Map<Main.Var, Main.Exp> context) {
+        Map<Main.Var, Main.Exp> copy = new HashMap<>(context);
+        copy.put(new Main.Var('w'), new Main.Num(8));
+        return copy;
+    }
+
+    private static Set<String> fileNames(Path directory) throws Exception {
+        Set<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    private static void deleteDirectory(Path directory) throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static String serialize(List<ExpParser.Token> tokens) {
+        SerializeTokenVisitor printer = new SerializeTokenVisitor();
+        for (ExpParser.Token token : tokens) {
+            token.accept(printer);
+        }
+        return printer.getResult();
+    }
+
+    private String postfix(String expressionString) {
+        SerializeTokenVisitor printer = new SerializeTokenVisitor();
+        for (ExpParser.Token token : expParser.toPostfixForm(expressionString)) {
+            token.accept(printer);
+        }
+        return printer.getResult();
+    }
 }
@@ -0,0 +1,103 @@
+package av.expr;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Node factory that returns one shared instance for structurally equal
+ * subexpressions, so trees built through it become DAGs. Operands are
+ * expected to come from the same factory, which makes the equality check of
+ * a new node an identity check of its operands. Nodes are held weakly and
+ * disappear from the table once no expression uses them. Safe for use from
+ * several threads.
+ */
+public class HashConsingFactory extends ExpFactory {
+    private final Map<Main.Exp, WeakReference<Main.Exp>> nodes = new WeakHashMap<>();
+
+    @Override
+    public Main.Exp num(double value) {
+        return intern(new Main.Num(value));
+    }
+
+    @Override
+    public Main.Exp num(long value) {
+        return intern(new Main.Num(value));
+    }
+
+    @Override
+    public Main.Exp var(Main.Var var) {
+        return intern(var);
+    }
+
+    @Override
+    public Main.Exp sum(Main.Exp left, Main.Exp right) {
+        return intern(new Main.Sum(left, right));
+    }
+
+    @Override
+    public Main.Exp sub(Main.Exp left, Main.Exp right) {
+        return intern(new Main.Sub(left, right));
+    }
+
+    @Override
+    public Main.Exp mul(Main.Exp left, Main.Exp right) {
+        return intern(new Main.Mul(left, right));
+    }
+
+    @Override
+    public Main.Exp dev(Main.Exp left, Main.Exp right) {
+        return intern(new Main.Dev(left, right));
+    }
+
+    /**
+     * Rebuilds an arbitrary tree bottom up so that all its equal subtrees,
+     * and subtrees equal to ones already known to the factory, are shared.
+     */
+    public Main.Exp canonicalize(Main.Exp exp) {
+        Deque<Main.Exp> pending = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        Deque<Main.Exp> results = new ArrayDeque<>();
+        pending.push(exp);
+        expanded.push(Boolean.FALSE);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.pop();
+            boolean done = expanded.pop();
+            if (!(node instanceof Main.BiExp)) {
+                results.push(node instanceof Main.Num ? num((Main.Num) node) : intern(node));
+            } else if (done) {
+                Main.Exp right = results.pop();
+                Main.Exp left = results.pop();
+                results.push(binary((Main.BiExp) node, left, right));
+            } else {
+                Main.BiExp biExp = (Main.BiExp) node;
+                pending.push(biExp);
+                expanded.push(Boolean.TRUE);
+                pending.push(biExp.right);
+                expanded.push(Boolean.FALSE);
+                pending.push(biExp.left);
+                expanded.push(Boolean.FALSE);
+            }
+        }
+        return results.pop();
+    }
+
+    /**
+     * @return number of distinct live nodes known to the factory
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    private synchronized Main.Exp intern(Main.Exp node) {
+        WeakReference<Main.Exp> reference = nodes.get(node);
+        Main.Exp existing = reference != null ? reference.get() : null;
+        if (existing != null) {
+            return existing;
+        }
+        nodes.put(node, new WeakReference<>(node));
+        return node;
+    }
+}
@@ -8,6 +8,8 @@ public class Main {
 
         Exp visit(Sum sum);
 
+        Exp visit(Sub sub);
+
         Exp visit(Mul mul);
 
         Exp visit(Dev dev);
@@ -25,11 +27,24 @@ public class Main {
         Iterator<Exp> iterator();
     }
 
+    /**
+     * Number held as a primitive, either an exact long or a double.
+     */
     public static class Num implements Exp {
-        public final Number number;
+        private final boolean integral;
+        private final long longValue;
+        private final double doubleValue;
+
+        public Num(long value) {
+            this.integral = true;
+            this.longValue = value;
+            this.doubleValue = value;
+        }
 
-        public Num(Number number) {
-            this.number = number;
+        public Num(double value) {
+            this.integral = false;
+            this.longValue = (long) value;
+            this.doubleValue = value;
         }
 
         public void accept(ExpVisitor visitor) {
@@ -40,6 +55,52 @@ public class Main {
             visitor.visit(this);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Num num = (Num) o;
+
+            if (integral != num.integral) return false;
+            if (integral) return longValue == num.longValue;
+            return Double.doubleToLongBits(doubleValue) == Double.doubleToLongBits(num.doubleValue);
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = integral ? longValue : Double.doubleToLongBits(doubleValue);
+            return (int) (bits ^ (bits >>> 32));
+        }
+
+        /**
+         * @return true if the value is held exactly as an integer rather than as a double
+         */
+        public boolean isIntegral() {
+            return integral;
+        }
+
+        /**
+         * @return the value, truncated if it is not integral
+         */
+        public long longValue() {
+            return longValue;
+        }
+
+        public double doubleValue() {
+            return doubleValue;
+        }
+
+        /**
+         * @return the value boxed as a Long or a Double
+         */
+        public Number getNumber() {
+            if (integral) {
+                return longValue;
+            }
+            return doubleValue;
+        }
+
         @Override
         public Iterator<Exp> iterator() {
             return new Iterator<Exp>() {
@@ -68,10 +129,18 @@ public class Main {
     }
 
     public static class Var implements Exp {
-        private char c;
+        private final String name;
 
         public Var(char c) {
-            this.c = c;
+            this(String.valueOf(c));
+        }
+
+        public Var(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
         }
 
         @Override
@@ -96,47 +165,105 @@ public class Main {
 
             Var var = (Var) o;
 
-            if (c != var.c) return false;
+            if (!name.equals(var.name)) return false;
 
             return true;
         }
 
         @Override
         public int hashCode() {
-            return (int) c;
+            return name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name;
         }
     }
 
     public static abstract class BiExp implements Exp {
         public final Exp left;
         public final Exp right;
+        private final int hash;
 
         public BiExp(Exp left, Exp right) {
             this.left = left;
             this.right = right;
+            this.hash = 31 * (31 * getClass().getName().hashCode() + left.hashCode()) + right.hashCode();
         }
 
+        /**
+         * Structural equality, compared without recursion so that deep trees are safe.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass() || hash != o.hashCode()) return false;
+
+            Deque<Exp> pending = new ArrayDeque<>();
+            pending.push(this);
+            pending.push((Exp) o);
+            while (!pending.isEmpty()) {
+                Exp b = pending.pop();
+                Exp a = pending.pop();
+                if (a == b) continue;
+                if (a.getClass() != b.getClass() || a.hashCode() != b.hashCode()) return false;
+                if (a instanceof BiExp) {
+                    pending.push(((BiExp) a).left);
+                    pending.push(((BiExp) b).left);
+                    pending.push(((BiExp) a).right);
+                    pending.push(((BiExp) b).right);
+                } else if (!a.equals(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * Visits the nodes in order, left operand, node, right operand, keeping the
+         * path to the current node on an explicit stack.
+         */
+        public void traverse(ExpVisitor visitor) {
+            Deque<BiExp> path = new ArrayDeque<>();
+            Exp node = this;
+            while (true) {
+                while (node instanceof BiExp) {
+                    path.push((BiExp) node);
+                    node = ((BiExp) node).left;
+                }
+                node.traverse(visitor);
+                if (path.isEmpty()) return;
+                BiExp parent = path.pop();
+                parent.accept(visitor);
+                node = parent.right;
+            }
+        }
+
+        /**
+         * @return nodes in pre-order, this node first
+         */
         public Iterator<Exp> iterator() {
+            final Deque<Exp> pending = new ArrayDeque<>();
+            pending.push(this);
             return new Iterator<Exp>() {
-                private final Iterator<Exp> leftIter = left.iterator();
-                private final Iterator<Exp> rightIter = right.iterator();
-                private boolean doneThis = false;
-
                 public boolean hasNext() {
-                    return !doneThis || leftIter.hasNext() || rightIter.hasNext();
+                    return !pending.isEmpty();
                 }
 
                 public Exp next() {
-                    if (!doneThis) {
-                        try {
-                            return BiExp.this;
-                        } finally {
-                            doneThis = true;
-                        }
+                    if (pending.isEmpty()) throw new NoSuchElementException();
+                    Exp next = pending.pop();
+                    if (next instanceof BiExp) {
+                        pending.push(((BiExp) next).right);
+                        pending.push(((BiExp) next).left);
                     }
-                    if (leftIter.hasNext()) return leftIter.next();
-                    if (rightIter.hasNext()) return rightIter.next();
-                    throw new IllegalStateException();
+                    return next;
                 }
 
                 public void remove() {
@@ -154,11 +281,15 @@ public class Main {
         public void accept(ExpVisitor matcher) {
             matcher.visit(this);
         }
+    }
 
-        public void traverse(ExpVisitor visitor) {
-            left.traverse(visitor);
-            visitor.visit(this);
-            right.traverse(visitor);
+    public static class Sub extends BiExp {
+        public Sub(Exp left, Exp right) {
+            super(left, right);
+        }
+
+        public void accept(ExpVisitor matcher) {
+            matcher.visit(this);
         }
     }
 
@@ -170,12 +301,6 @@ public class Main {
         public void accept(ExpVisitor matcher) {
             matcher.visit(this);
         }
-
-        public void traverse(ExpVisitor visitor) {
-            left.traverse(visitor);
-            visitor.visit(this);
-            right.traverse(visitor);
-        }
     }
 
     public static class Dev extends BiExp {
@@ -186,12 +311,6 @@ public class Main {
         public void accept(ExpVisitor matcher) {
             matcher.visit(this);
         }
-
-        public void traverse(ExpVisitor visitor) {
-            left.traverse(visitor);
-            visitor.visit(this);
-            right.traverse(visitor);
-        }
     }
 
     public static class Assign extends BiExp {
@@ -205,12 +324,6 @@ public class Main {
             visitor.visit(this);
         }
 
-        public void traverse(ExpVisitor visitor) {
-            left.traverse(visitor);
-            visitor.visit(this);
-            right.traverse(visitor);
-        }
-
     }
 
     /*
@@ -227,7 +340,7 @@ public class Main {
         }
     */
     private static void prettyPrint(Num exp) {
-        System.out.print(exp.number);
+        System.out.print(exp.getNumber());
     }
 
     private static void prettyPrint(Dev exp) {
@@ -262,6 +375,40 @@ public class Main {
         System.out.print(")");
     }
 
+    static int countNodes(Exp exp) {
+        int count = 0;
+        Deque<Exp> pending = new ArrayDeque<>();
+        pending.push(exp);
+        while (!pending.isEmpty()) {
+            Exp next = pending.pop();
+            count++;
+            if (next instanceof BiExp) {
+                pending.push(((BiExp) next).right);
+                pending.push(((BiExp) next).left);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return distinct variables of the expression in order of first appearance
+     */
+    static List<Var> freeVariables(Exp exp) {
+        Set<Var> vars = new LinkedHashSet<>();
+        Deque<Exp> pending = new ArrayDeque<>();
+        pending.push(exp);
+        while (!pending.isEmpty()) {
+            Exp next = pending.pop();
+            if (next instanceof Var) {
+                vars.add((Var) next);
+            } else if (next instanceof BiExp) {
+                pending.push(((BiExp) next).right);
+                pending.push(((BiExp) next).left);
+            }
+        }
+        return new ArrayList<>(vars);
+    }
+
     public static void main(String[] args) {
         Map<Var, Exp> context = new HashMap<>();
         Evaluator evaluator = new Evaluator(context);
@@ -290,17 +437,65 @@ public class Main {
     }
 
      static class Evaluator implements ExpVisitor {
+        // deeper subtrees are evaluated without recursion
+        private static final int RECURSION_LIMIT = DoubleEvaluator.RECURSION_LIMIT;
+        // frame states: operator walking its left or right operand, variable being resolved
+        private static final byte LEFT = 0;
+        private static final byte RIGHT = 1;
+        private static final byte RESOLVED = 2;
+
         private final Deque<Exp> queue = new ArrayDeque<>();
+        // frames of the explicit-stack walk, allocated on the first deep tree and reused
+        private Exp[] work;
+        private byte[] states;
+        private int top;
          private final Map<Var, Exp> context;
          private boolean strict;
+         // each variable's definition is evaluated once, shared across evaluations for a VersionedContext
+         private final Map<Var, Exp> resolved;
+         // variables whose definitions are being evaluated
+         private final Set<Var> resolving = new HashSet<>();
+         // results of shared nodes, only kept for DAGs built by HashConsingFactory
+         private Map<Exp, Exp> shared;
 
          public Evaluator(Map<Var, Exp> context) {
-            this.context = context;
+            this(context, false);
         }
 
          Evaluator(Map<Var, Exp> context, boolean strict) {
+             this(context, strict, context instanceof VersionedContext
+                     ? ((VersionedContext) context).resolvedValues(strict)
+                     : new HashMap<Var, Exp>());
+         }
+
+         /**
+          * @param resolved values of variables already resolved in this context,
+          *                 filled by the evaluation; owned by the calling thread
+          */
+         Evaluator(Map<Var, Exp> context, boolean strict, Map<Var, Exp> resolved) {
              this.context = context;
              this.strict = strict;
+             this.resolved = resolved;
+         }
+
+         /**
+          * Evaluates every node instance once, for expressions whose subtrees are shared.
+          */
+         Evaluator shareSubexpressions() {
+             shared = new IdentityHashMap<>();
+             return this;
+         }
+
+         private boolean reuse(Exp exp) {
+             if (shared == null) return false;
+             Exp value = shared.get(exp);
+             if (value == null) return false;
+             queue.addLast(value);
+             return true;
+         }
+
+         private void remember(Exp exp) {
+             if (shared != null) shared.put(exp, queue.peekLast());
          }
 
          @Override
@@ -311,64 +506,214 @@ public class Main {
 
         @Override
         public Exp visit(Sum sum) {
-            sum.left.accept(this);
-            sum.right.accept(this);
-            Exp e1 = queue.pollLast();
-            Exp e2 = queue.pollLast();
-            if(e1 instanceof Num && e2 instanceof Num) {
-                Num n1 = (Num) e1;
-                Num n2 = (Num) e2;
-                queue.addLast(new Num(n1.number.doubleValue() + n2.number.doubleValue()));
-            } else {
-                queue.push(new Sum(e1, e2));
-            }
+            evaluate(sum, 0);
+            return null;
+        }
+
+        @Override
+        public Exp visit(Sub sub) {
+            evaluate(sub, 0);
             return null;
         }
 
         @Override
         public Exp visit(Mul mul) {
-            mul.left.accept(this);
-            mul.right.accept(this);
-            Exp e1 = queue.pollLast();
-            Exp e2 = queue.pollLast();
-            if(e1 instanceof Num && e2 instanceof Num) {
-                Num n1 = (Num) e1;
-                Num n2 = (Num) e2;
-                queue.addLast(new Num(n1.number.doubleValue() * n2.number.doubleValue()));
-            } else {
-                queue.push(new Mul(e1, e2));
-            }
+            evaluate(mul, 0);
             return null;
         }
 
         @Override
         public Exp visit(Dev dev) {
-            dev.left.accept(this);
-            dev.right.accept(this);
-            Exp e1 = queue.pollLast();
-            Exp e2 = queue.pollLast();
-            if(e1 instanceof Num && e2 instanceof Num) {
-                Num n1 = (Num) e1;
-                Num n2 = (Num) e2;
-                queue.addLast(new Num(n2.number.doubleValue() / n1.number.doubleValue()));
-            } else {
-                queue.push(new Dev(e1, e2));
-            }
+            evaluate(dev, 0);
             return null;
         }
 
         @Override
         public Exp visit(Var var) {
-            Exp exp = context.get(var);
-            if(exp != null) {
-                exp.accept(this);
-            } else {
-                if(strict) throw new RuntimeException("dddd");
-                queue.addLast(var);
-            }
+            evaluate(var, 0);
             return null;
         }
 
+         private void evaluate(Exp exp, int depth) {
+             if (depth == RECURSION_LIMIT) {
+                 walk(exp);
+             } else if (exp instanceof Num) {
+                 queue.addLast(exp);
+             } else if (exp instanceof Var) {
+                 Var var = (Var) exp;
+                 Exp value = resolved.get(var);
+                 if (value != null) {
+                     queue.addLast(value);
+                     return;
+                 }
+                 Exp definition = context.get(var);
+                 if (definition != null) {
+                     startResolving(var);
+                     try {
+                         evaluate(definition, depth + 1);
+                     } finally {
+                         resolving.remove(var);
+                     }
+                     resolved.put(var, queue.peekLast());
+                 } else {
+                     if (strict) throw new RuntimeException("dddd");
+                     queue.addLast(var);
+                 }
+             } else if (exp instanceof Assign) {
+                 exp.accept(this);
+             } else {
+                 BiExp biExp = (BiExp) exp;
+                 if (reuse(biExp)) return;
+                 evaluate(biExp.left, depth + 1);
+                 evaluate(biExp.right, depth + 1);
+                 combine(biExp);
+             }
+         }
+
+         /**
+          * Evaluates a subtree below the recursion limit with an explicit stack of
+          * frames, so the depth of the tree is limited by the heap rather than the
+          * thread stack. Leaves go straight to the queue, each operator gets one frame
+          * that moves from its left to its right operand and is combined when both
+          * are done.
+          */
+         private void walk(Exp root) {
+             if (work == null) {
+                 work = new Exp[64];
+                 states = new byte[64];
+             }
+             int base = top;
+             Exp node = root;
+             try {
+                 while (true) {
+                     descend(node);
+                     // pop finished frames until one still has a right operand to walk
+                     while (true) {
+                         if (top == base) return;
+                         int frame = top - 1;
+                         if (states[frame] == LEFT) {
+                             states[frame] = RIGHT;
+                             node = ((BiExp) work[frame]).right;
+                             break;
+                         }
+                         Exp finished = work[frame];
+                         work[frame] = null;
+                         top = frame;
+                         if (states[frame] == RIGHT) {
+                             combine((BiExp) finished);
+                         } else {
+                             resolving.remove(finished);
+                             resolved.put((Var) finished, queue.peekLast());
+                         }
+                     }
+                 }
+             } catch (RuntimeException e) {
+                 while (top > base) {
+                     if (states[--top] == RESOLVED) {
+                         resolving.remove(work[top]);
+                     }
+                     work[top] = null;
+                 }
+                 throw e;
+             }
+         }
+
+         private void startResolving(Var var) {
+             if (!resolving.add(var)) {
+                 throw new IllegalArgumentException("Cyclic definition of " + var.getName());
+             }
+         }
+
+         /**
+          * Follows left operands and variable definitions down to a value, pushing a
+          * frame for each operator and definition passed on the way.
+          */
+         private void descend(Exp node) {
+             while (true) {
+                 if (node instanceof Num) {
+                     queue.addLast(node);
+                     return;
+                 }
+                 if (node instanceof Var) {
+                     Var var = (Var) node;
+                     Exp value = resolved.get(var);
+                     if (value != null) {
+                         queue.addLast(value);
+                         return;
+                     }
+                     Exp exp = context.get(var);
+                     if (exp == null) {
+                         if (strict) throw new RuntimeException("dddd");
+                         queue.addLast(var);
+                         return;
+                     }
+                     startResolving(var);
+                     pushWork(var, RESOLVED);
+                     node = exp;
+                 } else if (node instanceof Assign) {
+                     node.accept(this);
+                     return;
+                 } else {
+                     if (reuse(node)) return;
+                     pushWork(node, LEFT);
+                     node = ((BiExp) node).left;
+                 }
+             }
+         }
+
+         private void pushWork(Exp exp, byte state) {
+             if (top == work.length) {
+                 work = Arrays.copyOf(work, top * 2);
+                 states = Arrays.copyOf(states, top * 2);
+             }
+             work[top] = exp;
+             states[top++] = state;
+         }
+
+         private void combine(BiExp exp) {
+             Exp right = queue.pollLast();
+             Exp left = queue.pollLast();
+             if (left instanceof Num && right instanceof Num) {
+                 queue.addLast(arithmetic(exp, (Num) left, (Num) right));
+             } else if (exp instanceof Sum) {
+                 queue.addLast(new Sum(left, right));
+             } else if (exp instanceof Sub) {
+                 queue.addLast(new Sub(left, right));
+             } else if (exp instanceof Mul) {
+                 queue.addLast(new Mul(left, right));
+             } else {
+                 queue.addLast(new Dev(left, right));
+             }
+             remember(exp);
+         }
+
+         /**
+          * Stays in long arithmetic while both operands are integral and the
+          * result is exact, otherwise computes in double: on overflow, for a
+          * division with a remainder and when either operand is a double.
+          */
+         static Num arithmetic(BiExp exp, Num left, Num right) {
+             if (left.isIntegral() && right.isIntegral()) {
+                 long n1 = left.longValue();
+                 long n2 = right.longValue();
+                 try {
+                     if (exp instanceof Sum) return new Num(Math.addExact(n1, n2));
+                     if (exp instanceof Sub) return new Num(Math.subtractExact(n1, n2));
+                     if (exp instanceof Mul) return new Num(Math.multiplyExact(n1, n2));
+                     // Long.MIN_VALUE / -1 is the one quotient that overflows
+                     if (n2 != 0 && n1 % n2 == 0 && (n2 != -1 || n1 != Long.MIN_VALUE)) return new Num(n1 / n2);
+                 } catch (ArithmeticException overflow) {
+                     // promoted below
+                 }
+             }
+             double n1 = left.doubleValue();
+             double n2 = right.doubleValue();
+             if (exp instanceof Sum) return new Num(n1 + n2);
+             if (exp instanceof Sub) return new Num(n1 - n2);
+             if (exp instanceof Mul) return new Num(n1 * n2);
+             return new Num(n1 / n2);
+         }
+
          @Override
          public void visit(final Assign assign) {
             assign.left.accept(new ExpVisitor() {
@@ -382,6 +727,11 @@ public class Main {
                     return null;
                 }
 
+                @Override
+                public Exp visit(Sub sub) {
+                    return null;
+                }
+
                 @Override
                 public Exp visit(Mul mul) {
                     return null;
@@ -395,6 +745,8 @@ public class Main {
                 @Override
                 public Exp visit(Var var) {
                     context.put(var, assign.right);
+                    resolved.clear();
+                    if (shared != null) shared.clear();
                     return assign.right;
                 }
 
@@ -410,48 +762,55 @@ public class Main {
         }
     }
 
+     /**
+      * Collects the output of {@link ExpWriter} for callers that need a String.
+      */
      static class PrettyPrinter implements ExpVisitor {
-        private StringBuffer sb = new StringBuffer();
+        private final StringBuilder sb = new StringBuilder();
+        private final ExpWriter writer = new ExpWriter();
 
         public Exp visit(Num num) {
-            sb.append(num.number);
+            print(num);
             return null;
         }
 
         public Exp visit(Sum sum) {
-            sb.append("(");
-            sum.left.accept(this);
-            sb.append(" + ");
-            sum.right.accept(this);
-            sb.append(")");
+            print(sum);
+            return null;
+        }
+
+        public Exp visit(Sub sub) {
+            print(sub);
             return null;
         }
 
         public Exp visit(Mul mul) {
-            mul.left.accept(this);
-            sb.append(" * ");
-            mul.right.accept(this);
+            print(mul);
             return null;
         }
 
         public Exp visit(Dev dev) {
-            dev.left.accept(this);
-            sb.append(" / ");
-            dev.right.accept(this);
+            print(dev);
             return null;
         }
 
         @Override
         public Exp visit(Var var) {
-            sb.append(var.c);
+            print(var);
             return null;
         }
 
          @Override
          public void visit(Assign assign) {
-             assign.left.accept(this);
-             sb.append(" = ");
-             assign.right.accept(this);
+             print(assign);
+         }
+
+         private void print(Exp exp) {
+             try {
+                 writer.print(exp, sb);
+             } catch (java.io.IOException e) {
+                 throw new IllegalStateException(e);
+             }
          }
 
          public String getResult() {
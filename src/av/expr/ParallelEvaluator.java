@@ -0,0 +1,180 @@
+package av.expr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates very large expression trees on a {@link ForkJoinPool}. Subtrees
+ * with more than {@code threshold} nodes on both sides of an operator are
+ * evaluated in parallel; smaller subtrees go through the sequential
+ * {@link Main.Evaluator}, so strict and simplify modes give the same results
+ * as the sequential evaluator. Long operator chains are walked iteratively.
+ * The context must not be modified while an evaluation is running. Each task
+ * resolves variables into its own map, so the values a {@link VersionedContext}
+ * keeps between evaluations are neither read nor filled from pool threads.
+ */
+public class ParallelEvaluator {
+    public static final int DEFAULT_THRESHOLD = 2048;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    public ParallelEvaluator(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    public Main.Exp evaluate(Main.Exp exp, Map<Main.Var, Main.Exp> context) {
+        return evaluate(exp, context, true);
+    }
+
+    public Main.Exp simplify(Main.Exp exp, Map<Main.Var, Main.Exp> context) {
+        return evaluate(exp, context, false);
+    }
+
+    public Main.Exp evaluate(Main.Exp exp, Map<Main.Var, Main.Exp> context, boolean strict) {
+        Map<Main.Exp, Boolean> large = largeSubtrees(exp);
+        if (large.isEmpty()) {
+            return sequential(exp, context, strict);
+        }
+        return pool.invoke(new EvaluationTask(exp, context, strict, large));
+    }
+
+    /**
+     * Finds the nodes whose subtree has more than {@code threshold} nodes,
+     * using an explicit stack so that deep trees do not overflow.
+     */
+    private Map<Main.Exp, Boolean> largeSubtrees(Main.Exp exp) {
+        List<Main.Exp> preOrder = new ArrayList<>();
+        List<Main.Exp> pending = new ArrayList<>();
+        pending.add(exp);
+        while (!pending.isEmpty()) {
+            Main.Exp node = pending.remove(pending.size() - 1);
+            preOrder.add(node);
+            if (node instanceof Main.BiExp) {
+                pending.add(((Main.BiExp) node).left);
+                pending.add(((Main.BiExp) node).right);
+            }
+        }
+
+        Map<Main.Exp, Boolean> large = new IdentityHashMap<>();
+        int[] sizes = new int[preOrder.size()];
+        int top = 0;
+        for (int i = preOrder.size() - 1; i >= 0; i--) {
+            Main.Exp node = preOrder.get(i);
+            int size = 1;
+            if (node instanceof Main.BiExp) {
+                size += sizes[--top] + sizes[--top];
+            }
+            sizes[top++] = size;
+            if (size > threshold) {
+                large.put(node, Boolean.TRUE);
+            }
+        }
+        return large;
+    }
+
+    static Main.Exp sequential(Main.Exp exp, Map<Main.Var, Main.Exp> context, boolean strict) {
+        Main.Evaluator evaluator = new Main.Evaluator(context, strict);
+        exp.accept(evaluator);
+        return evaluator.getResult();
+    }
+
+    private static Main.Exp sequential(Main.Exp exp, Map<Main.Var, Main.Exp> context, boolean strict,
+                                       Map<Main.Var, Main.Exp> resolved) {
+        Main.Evaluator evaluator = new Main.Evaluator(context, strict, resolved);
+        exp.accept(evaluator);
+        return evaluator.getResult();
+    }
+
+    /**
+     * Folds two evaluated operands the same way {@link Main.Evaluator} does.
+     */
+    static Main.Exp combine(Main.BiExp exp, Main.Exp left, Main.Exp right) {
+        if (left instanceof Main.Num && right instanceof Main.Num) {
+            return Main.Evaluator.arithmetic(exp, (Main.Num) left, (Main.Num) right);
+        } else {
+            if (exp instanceof Main.Sum) return new Main.Sum(left, right);
+            if (exp instanceof Main.Sub) return new Main.Sub(left, right);
+            if (exp instanceof Main.Mul) return new Main.Mul(left, right);
+            if (exp instanceof Main.Dev) return new Main.Dev(left, right);
+        }
+        throw new IllegalArgumentException("Cannot evaluate " + exp.getClass().getSimpleName());
+    }
+
+    private static class EvaluationTask extends RecursiveTask<Main.Exp> {
+        private static final long serialVersionUID = 1L;
+
+        private final Main.Exp exp;
+        private final Map<Main.Var, Main.Exp> context;
+        private final boolean strict;
+        private final Map<Main.Exp, Boolean> large;
+        // variables resolved by this task, never shared with other threads
+        private final Map<Main.Var, Main.Exp> resolved = new HashMap<>();
+
+        EvaluationTask(Main.Exp exp, Map<Main.Var, Main.Exp> context, boolean strict, Map<Main.Exp, Boolean> large) {
+            this.exp = exp;
+            this.context = context;
+            this.strict = strict;
+            this.large = large;
+        }
+
+        @Override
+        protected Main.Exp compute() {
+            return evaluate(exp);
+        }
+
+        private Main.Exp evaluate(Main.Exp node) {
+            // walk down while only one side is large, those are chains with nothing to split
+            List<Main.BiExp> spine = new ArrayList<>();
+            Main.Exp result;
+            while (true) {
+                if (!large.containsKey(node) || !(node instanceof Main.BiExp)) {
+                    result = sequential(node, context, strict, resolved);
+                    break;
+                }
+                Main.BiExp biExp = (Main.BiExp) node;
+                boolean largeLeft = large.containsKey(biExp.left);
+                boolean largeRight = large.containsKey(biExp.right);
+                if (largeLeft && largeRight) {
+                    EvaluationTask leftTask = new EvaluationTask(biExp.left, context, strict, large);
+                    leftTask.fork();
+                    Main.Exp right = evaluate(biExp.right);
+                    result = combine(biExp, leftTask.join(), right);
+                    break;
+                }
+                if (!largeLeft && !largeRight) {
+                    EvaluationTask leftTask = new EvaluationTask(biExp.left, context, strict, large);
+                    leftTask.fork();
+                    Main.Exp right = sequential(biExp.right, context, strict, resolved);
+                    result = combine(biExp, leftTask.join(), right);
+                    break;
+                }
+                spine.add(biExp);
+                node = largeLeft ? biExp.left : biExp.right;
+            }
+
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                Main.BiExp biExp = spine.get(i);
+                if (large.containsKey(biExp.left)) {
+                    result = combine(biExp, result, sequential(biExp.right, context, strict, resolved));
+                } else {
+                    result = combine(biExp, sequential(biExp.left, context, strict, resolved), result);
+                }
+            }
+            return result;
+        }
+    }
+}
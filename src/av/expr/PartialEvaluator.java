@@ -0,0 +1,99 @@
+package av.expr;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Specializes an expression on the variables that change rarely, such as the
+ * settings of a tenant, so that requests only supply the rest. The bound
+ * variables are substituted and every subtree that no longer depends on a
+ * free variable is folded once, with the arithmetic of {@link Main.Evaluator};
+ * with an {@link ExpOptimizer} the residual is also simplified, which folds
+ * constants that end up on both sides of a free variable. The residual is
+ * compiled by {@link ExpCompiler}, or encoded as an {@link ExpProgram} when it
+ * is too large to compile, and evaluated with a value per free slot.
+ * <p>
+ * Every step continues with explicit stacks where a tree gets deep, and the
+ * optimizer only copies trees nested too deeply to simplify, so deep trees
+ * are safe.
+ */
+public class PartialEvaluator {
+    private final ExpOptimizer optimizer;
+
+    public PartialEvaluator() {
+        this(null);
+    }
+
+    /**
+     * @param optimizer applied to each residual, or null to keep its shape
+     */
+    public PartialEvaluator(ExpOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * @param bindings definitions of the bound variables, which may refer to
+     *                 each other and to free variables; not modified, and must
+     *                 not change while the call runs
+     * @throws IllegalArgumentException if the expression is an assignment
+     */
+    public Residual specialize(Main.Exp exp, Map<Main.Var, Main.Exp> bindings) {
+        if (exp instanceof Main.Assign) {
+            throw new IllegalArgumentException("Cannot specialize an assignment");
+        }
+        Main.Evaluator evaluator = new Main.Evaluator(bindings, false);
+        exp.accept(evaluator);
+        Main.Exp residual = evaluator.getResult();
+        if (optimizer != null) {
+            residual = optimizer.optimize(residual);
+        }
+        return new Residual(residual);
+    }
+
+    /**
+     * Expression left after specialization, with its free variables as slots.
+     * Immutable; any number of threads may evaluate it at once.
+     */
+    public static final class Residual {
+        private final Main.Exp expression;
+        private final List<Main.Var> slots;
+        private final CompiledExpression compiled;
+        private final ExpProgram program;
+
+        Residual(Main.Exp expression) {
+            this.expression = expression;
+            List<Main.Var> variables = Main.freeVariables(expression);
+            CompiledExpression compiled;
+            ExpProgram program = null;
+            try {
+                compiled = ExpCompiler.compile(expression, variables);
+            } catch (IllegalArgumentException e) {
+                compiled = null;
+                program = ExpProgram.fromExpression(expression);
+                variables = program.getSlots();
+            }
+            this.slots = Collections.unmodifiableList(variables);
+            this.compiled = compiled;
+            this.program = program;
+        }
+
+        public Main.Exp getExpression() {
+            return expression;
+        }
+
+        /**
+         * @return free variables, values passed to {@link #evaluate(double[])} follow this order
+         */
+        public List<Main.Var> getSlots() {
+            return slots;
+        }
+
+        public double evaluate(double[] values) {
+            if (values.length < slots.size()) {
+                throw new IllegalArgumentException("Expected " + slots.size() + " values, got " + values.length);
+            }
+            return compiled != null ? compiled.evaluate(values) : program.evaluate(values);
+        }
+    }
+}
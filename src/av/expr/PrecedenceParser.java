@@ -0,0 +1,179 @@
+package av.expr;
+
+import java.util.Arrays;
+
+/**
+ * Precedence parser that builds the expression tree directly from the
+ * characters of the input, without token lists or a postfix pass.
+ * Binary operators are left associative, {@code *} and {@code /} bind
+ * tighter than {@code +} and {@code -}, and a leading {@code -} negates the
+ * operand that follows it. Pending operators, brackets and negations are
+ * kept on an explicit stack, so the nesting depth of the input is limited
+ * by the heap rather than the thread stack.
+ */
+class PrecedenceParser {
+    private static final int ADDITIVE = 1;
+    private static final int MULTIPLICATIVE = 2;
+    // operator stack entries besides the binary operator characters
+    private static final int BRACKET = '(';
+    private static final int NEGATE = '~';
+
+    private final CharSequence input;
+    private final ExpLexer lexer;
+    private final ExpFactory factory;
+    private Main.Exp[] operands = new Main.Exp[16];
+    private int operandCount;
+    private int[] operators = new int[16];
+    private int operatorCount;
+
+    PrecedenceParser(CharSequence input) {
+        this(input, ExpFactory.DEFAULT);
+    }
+
+    PrecedenceParser(CharSequence input, ExpFactory factory) {
+        this(input, factory, new ExpLexer.Names());
+    }
+
+    PrecedenceParser(CharSequence input, ExpFactory factory, ExpLexer.Names names) {
+        this.input = input;
+        this.lexer = new ExpLexer(input, names);
+        this.factory = factory;
+    }
+
+    Main.Exp parse() {
+        while (true) {
+            parseOperand();
+            while (true) {
+                int op = lexer.peek();
+                if (op == ')') {
+                    reduce(ADDITIVE);
+                    if (operatorCount == 0) {
+                        throw unexpected();
+                    }
+                    operatorCount--;
+                    lexer.advance();
+                    negate();
+                    continue;
+                }
+                int precedence = precedence(op);
+                if (precedence > 0) {
+                    reduce(precedence);
+                    pushOperator(op);
+                    lexer.advance();
+                    break;
+                }
+                reduce(ADDITIVE);
+                if (operatorCount > 0) {
+                    throw op == -1 ? new IllegalArgumentException("Missing ')' at end of expression") : unexpected();
+                }
+                if (op != -1) {
+                    throw unexpected();
+                }
+                return operands[0];
+            }
+        }
+    }
+
+    /**
+     * Pushes the next operand, after the brackets and negations that open it.
+     */
+    private void parseOperand() {
+        while (true) {
+            int c = lexer.peek();
+            if (c == '(') {
+                lexer.advance();
+                pushOperator(BRACKET);
+            } else if (c == '-') {
+                lexer.advance();
+                lexer.peek();
+                if (lexer.atNumber()) {
+                    pushOperand(number(true));
+                    return;
+                }
+                pushOperator(NEGATE);
+            } else if (lexer.atNumber()) {
+                pushOperand(number(false));
+                return;
+            } else if (c != -1 && ExpLexer.isIdentifierStart((char) c)) {
+                pushOperand(factory.var(lexer.scanIdentifier().getExp()));
+                return;
+            } else {
+                throw unexpected();
+            }
+        }
+    }
+
+    private void pushOperand(Main.Exp exp) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+        }
+        operands[operandCount++] = exp;
+        negate();
+    }
+
+    /**
+     * Applies the negations written directly before the operand on top.
+     */
+    private void negate() {
+        while (operatorCount > 0 && operators[operatorCount - 1] == NEGATE) {
+            operatorCount--;
+            operands[operandCount - 1] = factory.mul(factory.num(-1L), operands[operandCount - 1]);
+        }
+    }
+
+    private void pushOperator(int op) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+        }
+        operators[operatorCount++] = op;
+    }
+
+    /**
+     * Combines the operators on top of the stack that bind at least as tight as the given precedence.
+     */
+    private void reduce(int minPrecedence) {
+        while (operatorCount > 0 && precedence(operators[operatorCount - 1]) >= minPrecedence) {
+            int op = operators[--operatorCount];
+            Main.Exp right = operands[--operandCount];
+            Main.Exp left = operands[operandCount - 1];
+            operands[operandCount] = null;
+            operands[operandCount - 1] = combine(op, left, right);
+        }
+    }
+
+    private Main.Exp number(boolean negative) {
+        double value = lexer.scanNumber();
+        if (lexer.isIntegral()) {
+            return factory.num(negative ? -lexer.getIntegralValue() : lexer.getIntegralValue());
+        }
+        return factory.num(negative ? -value : value);
+    }
+
+    private static int precedence(int op) {
+        switch (op) {
+            case '+' :
+            case '-' : return ADDITIVE;
+            case '*' :
+            case '/' : return MULTIPLICATIVE;
+            default: return -1;
+        }
+    }
+
+    private Main.Exp combine(int op, Main.Exp left, Main.Exp right) {
+        switch (op) {
+            case '+' : return factory.sum(left, right);
+            case '-' : return factory.sub(left, right);
+            case '*' : return factory.mul(left, right);
+            case '/' : return factory.dev(left, right);
+            default: throw new IllegalStateException("Not an operator: " + (char) op);
+        }
+    }
+
+    private IllegalArgumentException unexpected() {
+        int pos = lexer.position();
+        if (pos >= input.length()) {
+            return new IllegalArgumentException("Unexpected end of expression");
+        }
+        return new IllegalArgumentException("Unexpected '" + input.charAt(pos) + "' at position " + pos);
+    }
+}
@@ -4,11 +4,18 @@ import javax.swing.*;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Created by anton on 4/14/14.
+ * <p>
+ * Usage: {@code java av.expr.REPLConsole [journal directory]}; with a
+ * directory the definitions are kept in a {@link DurableContext} and
+ * restored on the next start.
  */
 public class REPLConsole {
 
@@ -28,6 +35,13 @@ public class REPLConsole {
         frame.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosed(WindowEvent e) {
+                if (context instanceof Closeable) {
+                    try {
+                        ((Closeable) context).close();
+                    } catch (IOException e1) {
+                        e1.printStackTrace();
+                    }
+                }
                 System.exit(0);
             }
         });
@@ -99,8 +113,11 @@ public class REPLConsole {
         }
 
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         REPLConsole replConsole = new REPLConsole();
+        if (args.length > 0) {
+            replConsole.context = new DurableContext(Paths.get(args[0]));
+        }
         replConsole.init();
     }
 
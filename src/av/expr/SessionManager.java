@@ -0,0 +1,126 @@
+package av.expr;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serves many users from one process. Each {@link Session} has its own
+ * context, so assignments in one session are never visible in another, while
+ * all sessions share one {@link ExpResolver} and therefore one cache of
+ * immutable parsed trees.
+ * <p>
+ * There is no global lock: sessions are kept in a concurrent map, the
+ * statement cache is striped, and each session serializes only its own
+ * statements. Statements of different sessions run in parallel.
+ */
+public class SessionManager {
+    private final ExpResolver expResolver;
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public SessionManager() {
+        this(new ExpResolver());
+    }
+
+    public SessionManager(ExpResolver expResolver) {
+        this.expResolver = expResolver;
+    }
+
+    public ExpResolver getExpResolver() {
+        return expResolver;
+    }
+
+    /**
+     * @return the session with this id, created with an empty context if it does not exist
+     */
+    public Session open(String id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            Session created = new Session(id, expResolver);
+            session = sessions.putIfAbsent(id, created);
+            if (session == null) {
+                session = created;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * @return the session with this id, or null if it is not open
+     */
+    public Session get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Removes the session. Statements still running in it complete normally.
+     *
+     * @return the removed session, or null if it was not open
+     */
+    public Session close(String id) {
+        return sessions.remove(id);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public Set<String> sessionIds() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    /**
+     * Isolated context of one user. Methods are safe to call from any thread;
+     * statements of the same session run one at a time, in the order they
+     * acquire the session.
+     */
+    public static class Session {
+        private final String id;
+        private final ExpResolver expResolver;
+        private final VersionedContext context = new VersionedContext();
+
+        Session(String id, ExpResolver expResolver) {
+            this.id = id;
+            this.expResolver = expResolver;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public synchronized String simplifyStatement(String statement) {
+            return expResolver.simplifyStatement(statement, context);
+        }
+
+        public synchronized String evaluateStatement(String statement) {
+            return expResolver.evaluateStatement(statement, context);
+        }
+
+        public synchronized void simplifyStatement(String statement, Appendable out) throws IOException {
+            expResolver.simplifyStatement(statement, context, out);
+        }
+
+        public synchronized void evaluateStatement(String statement, Appendable out) throws IOException {
+            expResolver.evaluateStatement(statement, context, out);
+        }
+
+        public synchronized double evaluateStatementToDouble(String statement) {
+            return expResolver.evaluateStatementToDouble(statement, context);
+        }
+
+        /**
+         * @return copy of the session's definitions
+         */
+        public synchronized Map<Main.Var, Main.Exp> snapshot() {
+            return new HashMap<>(context);
+        }
+
+        public synchronized void clear() {
+            context.clear();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package av.expr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a statement that took longer than the threshold,
+ * 10 ms unless the recording sets {@code av.expr.SlowStatement#threshold}.
+ * Only emitted by a resolver with {@link ExpMetrics} and while a recording
+ * has the event enabled.
+ */
+@Name("av.expr.SlowStatement")
+@Label("Slow Statement")
+@Category("Expressions")
+@Description("Statement resolution slower than the threshold, with the time of each stage")
+@Threshold("10 ms")
+@StackTrace(false)
+class SlowStatementEvent extends Event {
+    @Label("Statement")
+    String statement;
+
+    @Label("Strict")
+    boolean strict;
+
+    @Label("Assignment")
+    boolean assignment;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Label("Nodes")
+    int nodes;
+
+    @Label("Parse")
+    @Timespan(Timespan.NANOSECONDS)
+    long parse;
+
+    @Label("Optimize")
+    @Timespan(Timespan.NANOSECONDS)
+    long optimize;
+
+    @Label("Evaluate")
+    @Timespan(Timespan.NANOSECONDS)
+    long evaluate;
+
+    @Label("Print")
+    @Timespan(Timespan.NANOSECONDS)
+    long print;
+}
@@ -0,0 +1,306 @@
+package av.expr;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of parsed statements keyed by the statement text and the
+ * factory and optimizer that built the tree, so resolvers with different
+ * settings can share a cache. Only the parse result is kept, so entries
+ * never depend on a context.
+ * The cache is limited both by entry count and by total weight (node count
+ * of the cached trees) and can be shared between threads. Parsed trees are
+ * immutable, so one cached statement can serve any number of contexts.
+ */
+public class StatementCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_MAX_WEIGHT = 256 * 1024;
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public StatementCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Single LRU list guarded by one lock, evicts exactly the least recently used entries.
+     */
+    public StatementCache(int maxEntries, long maxWeight) {
+        this(maxEntries, maxWeight, 1);
+    }
+
+    /**
+     * Splits the cache into segments chosen by the statement's hash, each with
+     * its own lock, LRU order and an equal share of the limits, so threads
+     * working on different statements rarely wait for each other. A statement
+     * heavier than a segment's share of the weight is not cached.
+     */
+    public StatementCache(int maxEntries, long maxWeight, int segments) {
+        if (maxEntries < 0 || maxWeight < 0) {
+            throw new IllegalArgumentException("Cache limits must not be negative");
+        }
+        if (segments <= 0) {
+            throw new IllegalArgumentException("Segments: " + segments);
+        }
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment((maxEntries + segments - 1) / segments, (maxWeight + segments - 1) / segments);
+        }
+    }
+
+    /**
+     * @return statement parsed with the default factory and no optimizer, or null
+     */
+    ParsedStatement get(String statement) {
+        return get(statement, ExpFactory.DEFAULT, null);
+    }
+
+    ParsedStatement get(String statement, ExpFactory factory, ExpOptimizer optimizer) {
+        ParsedStatement parsed = segmentFor(statement).get(new Key(statement, factory, optimizer));
+        if (parsed != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return parsed;
+    }
+
+    void put(String statement, ExpFactory factory, ExpOptimizer optimizer, ParsedStatement parsed) {
+        segmentFor(statement).put(new Key(statement, factory, optimizer), parsed);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    private Segment segmentFor(String statement) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        int h = statement.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCache{size=" + size() + ", weight=" + weight() + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + "}";
+    }
+
+    private class Segment {
+        private final int maxEntries;
+        private final long maxWeight;
+        private final LinkedHashMap<Key, ParsedStatement> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        Segment(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized ParsedStatement get(Key key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, ParsedStatement parsed) {
+            if (parsed.weight > maxWeight) {
+                return;
+            }
+            ParsedStatement previous = entries.put(key, parsed);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += parsed.weight;
+            evict();
+        }
+
+        private void evict() {
+            Iterator<Map.Entry<Key, ParsedStatement>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+                weight -= it.next().getValue().weight;
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Statement text and the settings its tree was built with, compared by identity.
+     */
+    private static class Key {
+        final String statement;
+        final ExpFactory factory;
+        final ExpOptimizer optimizer;
+
+        Key(String statement, ExpFactory factory, ExpOptimizer optimizer) {
+            this.statement = statement;
+            this.factory = factory;
+            this.optimizer = optimizer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return statement.equals(key.statement) && factory == key.factory && optimizer == key.optimizer;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * statement.hashCode() + System.identityHashCode(factory)) + System.identityHashCode(optimizer);
+        }
+    }
+
+    /**
+     * Parse result of a single statement: the assigned variable (null for plain
+     * expressions) and the unevaluated expression tree.
+     */
+    static class ParsedStatement {
+        final Main.Var var;
+        final Main.Exp expression;
+        final int weight;
+        private volatile Compiled compiled;
+
+        ParsedStatement(Main.Var var, Main.Exp expression) {
+            this.var = var;
+            this.expression = expression;
+            this.weight = Main.countNodes(expression);
+        }
+
+        boolean isAssignment() {
+            return var != null;
+        }
+
+        /**
+         * @return the expression compiled to bytecode, or null if it is too large to compile
+         * to double code, or to long code when every constant is integral
+         */
+        Compiled compiled() {
+            Compiled result = compiled;
+            if (result == null) {
+                List<Main.Var> slots = Main.freeVariables(expression);
+                try {
+                    CompiledExpression code = ExpCompiler.compile(expression, slots);
+                    boolean integral = hasIntegralConstant(expression);
+                    CompiledLongExpression longCode = null;
+                    if (allConstantsIntegral(expression)) {
+                        longCode = ExpCompiler.compileLong(expression, slots);
+                    }
+                    result = new Compiled(slots, code, longCode, integral);
+                } catch (IllegalArgumentException e) {
+                    result = Compiled.NOT_COMPILABLE;
+                }
+                compiled = result;
+            }
+            return result == Compiled.NOT_COMPILABLE ? null : result;
+        }
+
+        private static boolean hasIntegralConstant(Main.Exp exp) {
+            Deque<Main.Exp> pending = new ArrayDeque<>();
+            pending.push(exp);
+            while (!pending.isEmpty()) {
+                Main.Exp node = pending.pop();
+                if (node instanceof Main.Num && ((Main.Num) node).isIntegral()) {
+                    return true;
+                }
+                if (node instanceof Main.BiExp) {
+                    pending.push(((Main.BiExp) node).right);
+                    pending.push(((Main.BiExp) node).left);
+                }
+            }
+            return false;
+        }
+
+        private static boolean allConstantsIntegral(Main.Exp exp) {
+            Deque<Main.Exp> pending = new ArrayDeque<>();
+            pending.push(exp);
+            while (!pending.isEmpty()) {
+                Main.Exp node = pending.pop();
+                if (node instanceof Main.Num && !((Main.Num) node).isIntegral()) {
+                    return false;
+                }
+                if (node instanceof Main.BiExp) {
+                    pending.push(((Main.BiExp) node).right);
+                    pending.push(((Main.BiExp) node).left);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Double code of a statement, and long code when every constant is integral.
+     */
+    static class Compiled {
+        static final Compiled NOT_COMPILABLE = new Compiled(null, null, null, false);
+
+        final List<Main.Var> slots;
+        final CompiledExpression expression;
+        // null if a constant is not integral
+        final CompiledLongExpression longExpression;
+        final boolean hasIntegralConstant;
+
+        Compiled(List<Main.Var> slots, CompiledExpression expression, CompiledLongExpression longExpression,
+                 boolean hasIntegralConstant) {
+            this.slots = slots;
+            this.expression = expression;
+            this.longExpression = longExpression;
+            this.hasIntegralConstant = hasIntegralConstant;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package av.expr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Variable values stored in primitive arrays and addressed by slot. Names are
+ * hashed only when a slot is assigned, normally once per variable when an
+ * expression is bound with {@link #bind(Main.Exp)}; evaluating a bound
+ * program reads values by index.
+ */
+public class SymbolTable {
+    private final Map<Main.Var, Integer> slots = new HashMap<>();
+    // programs of the cached statements bound to this table, dropped with the statement
+    private final Map<StatementCache.ParsedStatement, ExpProgram> programs = new WeakHashMap<>();
+    private Main.Var[] names = new Main.Var[16];
+    private double[] values = new double[16];
+    private boolean[] defined = new boolean[16];
+    private int size;
+
+    /**
+     * @return slot of the variable, a new undefined slot is added for unknown names
+     */
+    public int slot(Main.Var var) {
+        Integer slot = slots.get(var);
+        if (slot == null) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                defined = Arrays.copyOf(defined, size * 2);
+            }
+            slot = size++;
+            names[slot] = var;
+            slots.put(var, slot);
+        }
+        return slot;
+    }
+
+    public int slot(String name) {
+        return slot(new Main.Var(name));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Main.Var name(int slot) {
+        checkSlot(slot);
+        return names[slot];
+    }
+
+    public boolean isDefined(int slot) {
+        checkSlot(slot);
+        return defined[slot];
+    }
+
+    public double get(int slot) {
+        checkSlot(slot);
+        if (!defined[slot]) {
+            throw new IllegalArgumentException("Undefined variable " + names[slot].getName());
+        }
+        return values[slot];
+    }
+
+    public void set(int slot, double value) {
+        checkSlot(slot);
+        values[slot] = value;
+        defined[slot] = true;
+    }
+
+    public void define(Main.Var var, double value) {
+        set(slot(var), value);
+    }
+
+    public void undefine(int slot) {
+        checkSlot(slot);
+        defined[slot] = false;
+    }
+
+    /**
+     * Resolves every variable of the expression to a slot of this table once.
+     * The returned program loads variable values straight from the table's slots.
+     */
+    public ExpProgram bind(Main.Exp exp) {
+        return ExpProgram.fromExpression(exp, this);
+    }
+
+    /**
+     * Binds a parsed statement once and returns the same program for later calls.
+     */
+    ExpProgram bind(StatementCache.ParsedStatement parsed) {
+        ExpProgram program = programs.get(parsed);
+        if (program == null) {
+            program = bind(parsed.expression);
+            programs.put(parsed, program);
+        }
+        return program;
+    }
+
+    /**
+     * Evaluates a program bound to this table. All variables it uses must be defined.
+     */
+    public double evaluate(ExpProgram program) {
+        int[] used = program.getUsedSlots();
+        for (int slot : used) {
+            if (slot >= size || !defined[slot]) {
+                throw new IllegalArgumentException("Undefined variable " + (slot < size ? names[slot].getName() : "#" + slot));
+            }
+        }
+        return program.evaluate(values);
+    }
+
+    /**
+     * Copies the defined values into a context map for the tree based evaluators.
+     */
+    public Map<Main.Var, Main.Exp> toContext() {
+        Map<Main.Var, Main.Exp> context = new HashMap<>();
+        for (int slot = 0; slot < size; slot++) {
+            if (defined[slot]) {
+                context.put(names[slot], new Main.Num(values[slot]));
+            }
+        }
+        return context;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("Slot: " + slot + ", Size: " + size);
+        }
+    }
+}
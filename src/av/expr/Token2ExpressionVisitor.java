@@ -8,29 +8,40 @@ import java.util.Deque;
  */
 class Token2ExpressionVisitor implements ExpParser.TokenVisitor {
     private Deque<Main.Exp> stack = new ArrayDeque<>();
+    private final ExpFactory factory;
+
+    Token2ExpressionVisitor() {
+        this(ExpFactory.DEFAULT);
+    }
+
+    Token2ExpressionVisitor(ExpFactory factory) {
+        this.factory = factory;
+    }
 
     @Override
     public void visit(ExpParser.NumberToken numberToken) {
-        stack.push(new Main.Num(numberToken.getNum()));
+        stack.push(numberToken.toExp(factory));
     }
 
     @Override
     public void visit(ExpParser.Plus plus) {
         Main.Exp op1 = stack.pop();
         Main.Exp op2 = stack.pop();
-        stack.push(new Main.Sum(op2, op1));
+        stack.push(factory.sum(op2, op1));
     }
 
     @Override
     public void visit(ExpParser.Minus minus) {
-
+        Main.Exp op1 = stack.pop();
+        Main.Exp op2 = stack.pop();
+        stack.push(factory.sub(op2, op1));
     }
 
     @Override
     public void visit(ExpParser.MultipleSign multipleSign) {
         Main.Exp op1 = stack.pop();
         Main.Exp op2 = stack.pop();
-        stack.push(new Main.Mul(op2, op1));
+        stack.push(factory.mul(op2, op1));
 
     }
 
@@ -38,7 +49,7 @@ class Token2ExpressionVisitor implements ExpParser.TokenVisitor {
     public void visit(ExpParser.DivisionSign divisionSign) {
         Main.Exp op1 = stack.pop();
         Main.Exp op2 = stack.pop();
-        stack.push(new Main.Dev(op2, op1));
+        stack.push(factory.dev(op2, op1));
     }
 
     @Override
@@ -57,6 +68,6 @@ class Token2ExpressionVisitor implements ExpParser.TokenVisitor {
 
     @Override
     public void visit(ExpParser.VarToken varToken) {
-         stack.push(new Main.Var(varToken.getVar().charAt(0)));
+         stack.push(factory.var(varToken.getExp()));
     }
 }
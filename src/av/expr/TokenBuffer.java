@@ -0,0 +1,45 @@
+package av.expr;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Growable array of tokens, a lighter {@link java.util.ArrayList} for the
+ * postfix form and decoded token streams. Every result gets its own buffer,
+ * callers keep the list they are given.
+ */
+class TokenBuffer extends AbstractList<ExpParser.Token> implements RandomAccess {
+    private ExpParser.Token[] tokens;
+    private int size;
+
+    TokenBuffer() {
+        this(16);
+    }
+
+    TokenBuffer(int capacity) {
+        tokens = new ExpParser.Token[capacity];
+    }
+
+    @Override
+    public boolean add(ExpParser.Token token) {
+        if (size == tokens.length) {
+            tokens = Arrays.copyOf(tokens, size * 2 + 1);
+        }
+        tokens[size++] = token;
+        return true;
+    }
+
+    @Override
+    public ExpParser.Token get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return tokens[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
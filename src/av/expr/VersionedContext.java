@@ -0,0 +1,83 @@
+package av.expr;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Context map that counts its modifications and keeps the variable values
+ * resolved by {@link Main.Evaluator} between evaluations. Every
+ * {@link #put}, {@link #remove} or {@link #clear} bumps the version and drops
+ * the resolved values, so evaluations never see a result computed from an
+ * older definition. Entries can only be changed through those methods.
+ */
+public class VersionedContext extends AbstractMap<Main.Var, Main.Exp> {
+    private final Map<Main.Var, Main.Exp> definitions = new HashMap<>();
+    private final Map<Main.Var, Main.Exp> strictValues = new HashMap<>();
+    private final Map<Main.Var, Main.Exp> simplifiedValues = new HashMap<>();
+    private long version;
+
+    public VersionedContext() {
+    }
+
+    public VersionedContext(Map<Main.Var, Main.Exp> context) {
+        definitions.putAll(context);
+    }
+
+    @Override
+    public Main.Exp get(Object key) {
+        return definitions.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return definitions.containsKey(key);
+    }
+
+    @Override
+    public Main.Exp put(Main.Var key, Main.Exp value) {
+        invalidate();
+        return definitions.put(key, value);
+    }
+
+    @Override
+    public Main.Exp remove(Object key) {
+        invalidate();
+        return definitions.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        invalidate();
+        definitions.clear();
+    }
+
+    @Override
+    public int size() {
+        return definitions.size();
+    }
+
+    @Override
+    public Set<Entry<Main.Var, Main.Exp>> entrySet() {
+        return Collections.unmodifiableMap(definitions).entrySet();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return values resolved under the current version, shared by evaluators of this context
+     */
+    Map<Main.Var, Main.Exp> resolvedValues(boolean strict) {
+        return strict ? strictValues : simplifiedValues;
+    }
+
+    private void invalidate() {
+        version++;
+        strictValues.clear();
+        simplifiedValues.clear();
+    }
+}